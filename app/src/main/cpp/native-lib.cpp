@@ -1,5 +1,8 @@
 #include <jni.h>
 #include <string>
+#include <cmath>
+#include <cstdint>
+#include <cstdlib>
 
 extern "C"
 JNIEXPORT jstring
@@ -11,3 +14,100 @@ Java_com_onemediain_photoscanner_MainActivity_stringFromJNI(
     std::string hello = "Hello from C++";
     return env->NewStringUTF(hello.c_str());
 }
+
+/* Mirrors an index into [0, size) the way BORDER_REFLECT_101 does: -1 -> 1, size -> size - 2. */
+static inline int reflect101(int index, int size) {
+    if (size == 1)
+        return 0;
+    if (index < 0)
+        return -index;
+    if (index >= size)
+        return 2 * size - index - 2;
+    return index;
+}
+
+/* Rounds (a + b) / 2 half to even, like addWeighted(a, 0.5, b, 0.5, 0) does. */
+static inline uint8_t averageRounded(int a, int b) {
+    int sum = a + b;
+    int half = sum >> 1;
+    if ((sum & 1) && (half & 1))
+        half++;
+    return (uint8_t) half;
+}
+
+/*
+ * 3x3 Sobel gradient of rows [rowStart, rowEnd) of an 8 bit gray image in a single pass.
+ * Writes the 8 bit blend 0.5 * |dx| + 0.5 * |dy| (each saturated to 255 first, as in
+ * convertScaleAbs + addWeighted) and, when the addresses are not 0, the raw 16 bit dx and dy
+ * and the gradient orientation in degrees [0, 180).
+ */
+extern "C"
+JNIEXPORT void
+
+JNICALL
+Java_com_onemediain_photoscanner_FusedSobel_nativeGradient(
+        JNIEnv * /* env */,
+        jclass /* clazz */,
+        jlong srcAddr, jlong srcStep, jint rows, jint cols,
+        jint rowStart, jint rowEnd,
+        jlong magnitudeAddr, jlong magnitudeStep,
+        jlong dxAddr, jlong dyAddr, jlong derivativeStep,
+        jlong orientationAddr, jlong orientationStep) {
+    const uint8_t *src = reinterpret_cast<const uint8_t *>(srcAddr);
+    uint8_t *magnitude = reinterpret_cast<uint8_t *>(magnitudeAddr);
+    uint8_t *dx = reinterpret_cast<uint8_t *>(dxAddr);
+    uint8_t *dy = reinterpret_cast<uint8_t *>(dyAddr);
+    uint8_t *orientation = reinterpret_cast<uint8_t *>(orientationAddr);
+    const float degrees = 180.0f / 3.14159265358979f;
+
+    for (int y = rowStart; y < rowEnd; y++) {
+        const uint8_t *above = src + reflect101(y - 1, rows) * srcStep;
+        const uint8_t *row = src + y * srcStep;
+        const uint8_t *below = src + reflect101(y + 1, rows) * srcStep;
+        uint8_t *magnitudeRow = magnitude + y * magnitudeStep;
+        int16_t *dxRow = dx ? reinterpret_cast<int16_t *>(dx + y * derivativeStep) : 0;
+        int16_t *dyRow = dy ? reinterpret_cast<int16_t *>(dy + y * derivativeStep) : 0;
+        uint8_t *orientationRow = orientation ? orientation + y * orientationStep : 0;
+
+        for (int x = 0; x < cols; x++) {
+            int left = reflect101(x - 1, cols);
+            int right = reflect101(x + 1, cols);
+
+            int gx = (above[right] + 2 * row[right] + below[right])
+                     - (above[left] + 2 * row[left] + below[left]);
+            int gy = (below[left] + 2 * below[x] + below[right])
+                     - (above[left] + 2 * above[x] + above[right]);
+
+            int absX = std::abs(gx);
+            int absY = std::abs(gy);
+            magnitudeRow[x] = averageRounded(absX > 255 ? 255 : absX, absY > 255 ? 255 : absY);
+
+            if (dxRow) {
+                dxRow[x] = (int16_t) gx;
+                dyRow[x] = (int16_t) gy;
+            }
+            if (orientationRow) {
+                float angle = std::atan2((float) gy, (float) gx) * degrees;
+                if (angle < 0)
+                    angle += 180.0f;
+                int rounded = (int) (angle + 0.5f);
+                orientationRow[x] = (uint8_t) (rounded >= 180 ? rounded - 180 : rounded);
+            }
+        }
+    }
+}
+
+/*
+ * Wraps native memory, such as the pixels of a Mat, in a direct ByteBuffer without copying,
+ * so NIO channels and buffers can read and write it. The buffer must not outlive the memory.
+ */
+extern "C"
+JNIEXPORT jobject
+
+JNICALL
+Java_com_onemediain_photoscanner_MatFile_nativeWrap(
+        JNIEnv *env,
+        jclass /* clazz */,
+        jlong address, jlong capacity) {
+    return env->NewDirectByteBuffer(reinterpret_cast<void *>(address), capacity);
+}
@@ -0,0 +1,144 @@
+package com.onemediain.photoscanner;
+
+import android.util.Log;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.List;
+
+/**
+ * Decides when a live preview frame is good enough to trigger a full resolution capture.
+ * A capture is requested only after the detected document quad has stayed in place for a
+ * number of consecutive frames and the document region passes a sharpness check, so the
+ * expensive warp and enhancement never run on frames the user would throw away.
+ */
+public class AutoCaptureGate {
+
+    private static final String TAG = "AutoCaptureGate";
+
+    private final int mStableFrames;
+    private final double mMaxCornerShift;
+    private final double mMinSharpness;
+
+    private final Point[] mLastQuad = new Point[4];
+    private int mStableCount = 0;
+    private double mLastSharpness = 0;
+
+    private final Mat mLaplacian = new Mat();
+    private final MatOfDouble mMean = new MatOfDouble();
+    private final MatOfDouble mStdDev = new MatOfDouble();
+
+    /**
+     * @param stableFrames   - number of consecutive frames the quad must stay in place
+     * @param maxCornerShift - largest movement of any corner between two frames, in pixels of the analysed frame
+     * @param minSharpness   - minimum Laplacian variance of the document region
+     */
+    public AutoCaptureGate(int stableFrames, double maxCornerShift, double minSharpness) {
+        mStableFrames = stableFrames;
+        mMaxCornerShift = maxCornerShift;
+        mMinSharpness = minSharpness;
+        for (int i = 0; i < mLastQuad.length; i++) {
+            mLastQuad[i] = new Point();
+        }
+    }
+
+    /**
+     * Feeds the quad detected on the current frame. The corners must be given in the
+     * coordinates of the downsampled gray frame, in a consistent order (see sortCorners).
+     *
+     * @param quad - the four detected corners, or null when nothing was found
+     * @param gray - the downsampled single channel frame the quad was detected on
+     * @return true when a full resolution capture should be taken now
+     */
+    public boolean onFrame(List<Point> quad, Mat gray) {
+        if (quad == null || quad.size() != 4) {
+            reset();
+            return false;
+        }
+
+        boolean stable = mStableCount > 0;
+        for (int i = 0; i < 4 && stable; i++) {
+            Point corner = quad.get(i);
+            double dx = corner.x - mLastQuad[i].x;
+            double dy = corner.y - mLastQuad[i].y;
+            if (dx * dx + dy * dy > mMaxCornerShift * mMaxCornerShift) {
+                stable = false;
+            }
+        }
+        for (int i = 0; i < 4; i++) {
+            mLastQuad[i].x = quad.get(i).x;
+            mLastQuad[i].y = quad.get(i).y;
+        }
+        mStableCount = stable ? mStableCount + 1 : 1;
+
+        if (mStableCount < mStableFrames) {
+            return false;
+        }
+
+        // Only pay for the sharpness check once the quad has settled
+        mLastSharpness = sharpness(gray, quad);
+        if (mLastSharpness < mMinSharpness) {
+            Log.d(TAG, "Quad stable but too blurry: " + mLastSharpness);
+            return false;
+        }
+
+        Log.d(TAG, "Triggering capture, sharpness: " + mLastSharpness);
+        reset();
+        return true;
+    }
+
+    /**
+     * Forgets the tracked quad, e.g. after a capture or when the camera restarts.
+     */
+    public void reset() {
+        mStableCount = 0;
+    }
+
+    public int getStableCount() {
+        return mStableCount;
+    }
+
+    public double getLastSharpness() {
+        return mLastSharpness;
+    }
+
+    public void release() {
+        mLaplacian.release();
+        mMean.release();
+        mStdDev.release();
+    }
+
+    /**
+     * Variance of the Laplacian over the bounding box of the quad. Blurry frames have few
+     * strong second derivatives and therefore a low variance.
+     */
+    double sharpness(Mat gray, List<Point> quad) {
+        MatOfPoint quadMat = new MatOfPoint();
+        quadMat.fromList(quad);
+        Rect roi = Imgproc.boundingRect(quadMat);
+        quadMat.release();
+
+        int left = Math.max(roi.x, 0);
+        int top = Math.max(roi.y, 0);
+        int right = Math.min(roi.x + roi.width, gray.cols());
+        int bottom = Math.min(roi.y + roi.height, gray.rows());
+        if (right - left < 3 || bottom - top < 3) {
+            return 0;
+        }
+
+        Mat region = gray.submat(top, bottom, left, right);
+        Imgproc.Laplacian(region, mLaplacian, CvType.CV_16S);
+        Core.meanStdDev(mLaplacian, mMean, mStdDev);
+        region.release();
+
+        double stdDev = mStdDev.toArray()[0];
+        return stdDev * stdDev;
+    }
+}
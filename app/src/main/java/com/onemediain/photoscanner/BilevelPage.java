@@ -0,0 +1,93 @@
+package com.onemediain.photoscanner;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * A black and white page packed at one bit per pixel, most significant bit first, with every
+ * row starting on a byte boundary. A set bit is black. It takes an eighth of the memory of the
+ * CV_8UC1 image it is made from, and is what CcittG4Encoder compresses.
+ */
+public final class BilevelPage {
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mStride;
+    private final byte[] mData;
+
+    /**
+     * An all white page.
+     */
+    public BilevelPage(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mStride = (width + 7) / 8;
+        mData = new byte[mStride * height];
+    }
+
+    /**
+     * Packs a thresholded image.
+     *
+     * @param binary - CV_8UC1 image in which 0 is ink and anything else is paper, like the
+     *               output of SauvolaBinarizer
+     */
+    public static BilevelPage fromBinary(Mat binary) {
+        if (binary.type() != CvType.CV_8UC1) {
+            throw new IllegalArgumentException("BilevelPage needs a CV_8UC1 image, got " + binary);
+        }
+        BilevelPage page = new BilevelPage(binary.cols(), binary.rows());
+        byte[] row = new byte[page.mWidth];
+        for (int y = 0; y < page.mHeight; y++) {
+            binary.get(y, 0, row);
+            int offset = y * page.mStride;
+            for (int x = 0; x < page.mWidth; x++) {
+                if (row[x] == 0) {
+                    page.mData[offset + (x >> 3)] |= 0x80 >>> (x & 7);
+                }
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Unpacks the page into a CV_8UC1 image with 0 for black and 255 for white.
+     */
+    public Mat toMat() {
+        Mat image = new Mat(mHeight, mWidth, CvType.CV_8UC1);
+        byte[] row = new byte[mWidth];
+        for (int y = 0; y < mHeight; y++) {
+            int offset = y * mStride;
+            for (int x = 0; x < mWidth; x++) {
+                row[x] = (mData[offset + (x >> 3)] & (0x80 >>> (x & 7))) != 0 ? 0 : (byte) 255;
+            }
+            image.put(y, 0, row);
+        }
+        return image;
+    }
+
+    public boolean isBlack(int x, int y) {
+        return (mData[y * mStride + (x >> 3)] & (0x80 >>> (x & 7))) != 0;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return the number of bytes from the start of one row to the next
+     */
+    public int getStride() {
+        return mStride;
+    }
+
+    /**
+     * @return the packed rows, shared with the page
+     */
+    public byte[] getData() {
+        return mData;
+    }
+}
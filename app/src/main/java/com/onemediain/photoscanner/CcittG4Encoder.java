@@ -0,0 +1,212 @@
+package com.onemediain.photoscanner;
+
+/**
+ * Compresses a BilevelPage with CCITT Group 4 (ITU-T T.6), the coding used for black and white
+ * pages in TIFF (compression 4) and PDF (CCITTFaxDecode with K = -1). Each row is coded against
+ * the row above it, mostly as small shifts of its colour changes, so a text page shrinks to a
+ * few tens of kilobytes.
+ */
+public class CcittG4Encoder {
+
+    private static final String[] WHITE_TERMINATING = {
+            "00110101", "000111", "0111", "1000", "1011", "1100", "1110", "1111",
+            "10011", "10100", "00111", "01000", "001000", "000011", "110100", "110101",
+            "101010", "101011", "0100111", "0001100", "0001000", "0010111", "0000011", "0000100",
+            "0101000", "0101011", "0010011", "0100100", "0011000", "00000010", "00000011", "00011010",
+            "00011011", "00010010", "00010011", "00010100", "00010101", "00010110", "00010111", "00101000",
+            "00101001", "00101010", "00101011", "00101100", "00101101", "00000100", "00000101", "00001010",
+            "00001011", "01010010", "01010011", "01010100", "01010101", "00100100", "00100101", "01011000",
+            "01011001", "01011010", "01011011", "01001010", "01001011", "00110010", "00110011", "00110100"};
+
+    // Runs of 64, 128, ... 1728
+    private static final String[] WHITE_MAKE_UP = {
+            "11011", "10010", "010111", "0110111", "00110110", "00110111", "01100100", "01100101",
+            "01101000", "01100111", "011001100", "011001101", "011010010", "011010011", "011010100", "011010101",
+            "011010110", "011010111", "011011000", "011011001", "011011010", "011011011", "010011000", "010011001",
+            "010011010", "011000", "010011011"};
+
+    private static final String[] BLACK_TERMINATING = {
+            "0000110111", "010", "11", "10", "011", "0011", "0010", "00011",
+            "000101", "000100", "0000100", "0000101", "0000111", "00000100", "00000111", "000011000",
+            "0000010111", "0000011000", "0000001000", "00001100111", "00001101000", "00001101100", "00000110111", "00000101000",
+            "00000010111", "00000011000", "000011001010", "000011001011", "000011001100", "000011001101", "000001101000", "000001101001",
+            "000001101010", "000001101011", "000011010010", "000011010011", "000011010100", "000011010101", "000011010110", "000011010111",
+            "000001101100", "000001101101", "000011011010", "000011011011", "000001010100", "000001010101", "000001010110", "000001010111",
+            "000001100100", "000001100101", "000001010010", "000001010011", "000000100100", "000000110111", "000000111000", "000000100111",
+            "000000101000", "000001011000", "000001011001", "000000101011", "000000101100", "000001011010", "000001100110", "000001100111"};
+
+    // Runs of 64, 128, ... 1728
+    private static final String[] BLACK_MAKE_UP = {
+            "0000001111", "000011001000", "000011001001", "000001011011", "000000110011", "000000110100", "000000110101", "0000001101100",
+            "0000001101101", "0000001001010", "0000001001011", "0000001001100", "0000001001101", "0000001110010", "0000001110011", "0000001110100",
+            "0000001110101", "0000001110110", "0000001110111", "0000001010010", "0000001010011", "0000001010100", "0000001010101", "0000001011010",
+            "0000001011011", "0000001100100", "0000001100101"};
+
+    // Runs of 1792, 1856, ... 2560 of either colour
+    private static final String[] EXTENDED_MAKE_UP = {
+            "00000001000", "00000001100", "00000001101", "000000010010", "000000010011", "000000010100", "000000010101",
+            "000000010110", "000000010111", "000000011100", "000000011101", "000000011110", "000000011111"};
+
+    // Vertical mode codes for a1 - b1 = -3 ... 3
+    private static final String[] VERTICAL = {"0000010", "000010", "010", "1", "011", "000011", "0000011"};
+
+    private static final String PASS = "0001";
+    private static final String HORIZONTAL = "001";
+    private static final String END_OF_LINE = "000000000001";
+
+    private static final int MAX_RUN_CODE = 2560;
+
+    private CcittG4Encoder() {
+    }
+
+    /**
+     * @return the Group 4 data of the page, ending with the end of facsimile block
+     */
+    public static byte[] encode(BilevelPage page) {
+        int width = page.getWidth();
+        BitWriter out = new BitWriter(page.getData().length / 8 + 64);
+
+        // Colour changes of a row, as positions where the colour differs from the pixel before.
+        // Even indices change to black, odd ones back to white. Padded with width for lookahead.
+        int[] reference = new int[width + 3];
+        int[] coding = new int[width + 3];
+        int referenceCount = changes(null, 0, 0, width, reference);
+
+        for (int y = 0; y < page.getHeight(); y++) {
+            int codingCount = changes(page.getData(), y * page.getStride(), width, width, coding);
+
+            int a0 = -1;
+            boolean white = true;
+            int a1Index = 0;
+            int b1Index = 0;
+            while (a0 < width) {
+                while (a1Index < codingCount && coding[a1Index] <= a0) {
+                    a1Index++;
+                }
+                int a1 = coding[a1Index];
+
+                // b1 is the first change on the row above after a0 to the colour opposite a0's.
+                // A vertical mode step can move a0 left of the last b1, so search back first.
+                while (b1Index > 0 && reference[b1Index - 1] > a0) {
+                    b1Index--;
+                }
+                while (b1Index < referenceCount && reference[b1Index] <= a0) {
+                    b1Index++;
+                }
+                if ((b1Index & 1) == (white ? 1 : 0)) {
+                    b1Index++;
+                }
+                int b1 = reference[b1Index];
+                int b2 = reference[b1Index + 1];
+
+                if (b2 < a1) {
+                    out.write(PASS);
+                    a0 = b2;
+                } else if (Math.abs(a1 - b1) <= 3) {
+                    out.write(VERTICAL[a1 - b1 + 3]);
+                    a0 = a1;
+                    white = !white;
+                } else {
+                    int a2 = coding[a1Index + 1];
+                    out.write(HORIZONTAL);
+                    writeRun(out, a1 - Math.max(a0, 0), white);
+                    writeRun(out, a2 - a1, !white);
+                    a0 = a2;
+                }
+            }
+
+            int[] swap = reference;
+            reference = coding;
+            coding = swap;
+            referenceCount = codingCount;
+        }
+
+        out.write(END_OF_LINE);
+        out.write(END_OF_LINE);
+        return out.toByteArray();
+    }
+
+    /**
+     * Collects the colour changes of a packed row, followed by width twice.
+     *
+     * @return the number of changes, not counting the padding
+     */
+    private static int changes(byte[] data, int offset, int length, int width, int[] changes) {
+        int count = 0;
+        boolean black = false;
+        int x = 0;
+        while (x < length) {
+            int value = data[offset + (x >> 3)] & 0xff;
+            if ((x & 7) == 0 && value == (black ? 0xff : 0) && x + 8 <= length) {
+                // Whole byte of the current colour
+                x += 8;
+                continue;
+            }
+            if (((value & (0x80 >>> (x & 7))) != 0) != black) {
+                changes[count++] = x;
+                black = !black;
+            }
+            x++;
+        }
+        changes[count] = width;
+        changes[count + 1] = width;
+        changes[count + 2] = width;
+        return count;
+    }
+
+    private static void writeRun(BitWriter out, int run, boolean white) {
+        while (run > MAX_RUN_CODE) {
+            out.write(EXTENDED_MAKE_UP[EXTENDED_MAKE_UP.length - 1]);
+            run -= MAX_RUN_CODE;
+        }
+        if (run >= 64) {
+            int makeUp = run / 64;
+            if (makeUp <= 27) {
+                out.write(white ? WHITE_MAKE_UP[makeUp - 1] : BLACK_MAKE_UP[makeUp - 1]);
+            } else {
+                out.write(EXTENDED_MAKE_UP[makeUp - 28]);
+            }
+            run %= 64;
+        }
+        out.write(white ? WHITE_TERMINATING[run] : BLACK_TERMINATING[run]);
+    }
+
+    /**
+     * Collects codes most significant bit first, padding the last byte with zeros.
+     */
+    private static final class BitWriter {
+        private byte[] mBuffer;
+        private int mLength;
+        private int mCurrent;
+        private int mBits;
+
+        BitWriter(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        void write(String code) {
+            for (int i = 0; i < code.length(); i++) {
+                mCurrent = (mCurrent << 1) | (code.charAt(i) - '0');
+                if (++mBits == 8) {
+                    if (mLength == mBuffer.length) {
+                        byte[] grown = new byte[mBuffer.length * 2];
+                        System.arraycopy(mBuffer, 0, grown, 0, mLength);
+                        mBuffer = grown;
+                    }
+                    mBuffer[mLength++] = (byte) mCurrent;
+                    mCurrent = 0;
+                    mBits = 0;
+                }
+            }
+        }
+
+        byte[] toByteArray() {
+            if (mBits > 0) {
+                write("0000000".substring(mBits - 1));
+            }
+            byte[] result = new byte[mLength];
+            System.arraycopy(mBuffer, 0, result, 0, mLength);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.onemediain.photoscanner;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Median filter for 8 bit images whose cost per pixel does not depend on the kernel size
+ * (Perreault and Hebert, "Median Filtering in Constant Time"). Every column keeps a histogram
+ * of the pixels in the kernel height, which is updated with one add and one remove per row.
+ * The kernel histogram is the sum of 2r + 1 column histograms and slides along the row the
+ * same way. Histograms are split into 16 coarse and 16 x 16 fine bins: the coarse bins locate
+ * the median's bucket and only that bucket's fine bins are brought up to date, lazily.
+ * The image is cut into horizontal bands that are filtered in parallel.
+ */
+public class ConstantTimeMedian {
+
+    /**
+     * Largest kernel handed directly to Imgproc.medianBlur, which is fastest for small kernels.
+     */
+    public static final int MAX_DIRECT_KERNEL = 5;
+
+    private static final int BAND_ROWS = 64;
+
+    private ConstantTimeMedian() {
+    }
+
+    /**
+     * Same as Imgproc.medianBlur(src, dst, ksize), with replicated borders.
+     *
+     * @param src   - 8 bit image with any number of channels
+     * @param dst   - receives the filtered image
+     * @param ksize - odd kernel size
+     */
+    public static void medianBlur(final Mat src, final Mat dst, int ksize) {
+        if (ksize < 1 || ksize % 2 == 0) {
+            throw new IllegalArgumentException("Kernel size must be odd and positive: " + ksize);
+        }
+        if (ksize <= MAX_DIRECT_KERNEL || src.depth() != CvType.CV_8U) {
+            Imgproc.medianBlur(src, dst, ksize);
+            return;
+        }
+
+        final int radius = ksize / 2;
+        final Mat input = dst == src ? src.clone() : src;
+        dst.create(src.rows(), src.cols(), src.type());
+
+        List<Runnable> bands = new ArrayList<>();
+        for (int top = 0; top < src.rows(); top += BAND_ROWS) {
+            final int bandTop = top;
+            final int bandBottom = Math.min(top + BAND_ROWS, src.rows());
+            bands.add(new Runnable() {
+                @Override
+                public void run() {
+                    filterBand(input, dst, bandTop, bandBottom, radius);
+                }
+            });
+        }
+        ProcessingPool.runAll(bands);
+
+        if (input != src) {
+            input.release();
+        }
+    }
+
+    private static void filterBand(Mat src, Mat dst, int top, int bottom, int radius) {
+        int rows = bottom - top;
+        int cols = src.cols();
+        int channels = src.channels();
+        int diameter = 2 * radius + 1;
+
+        // Rows above and below the band come from the image itself, the image edges are replicated
+        Mat band = src.submat(top, bottom, 0, cols);
+        Mat padded = new Mat();
+        Core.copyMakeBorder(band, padded, radius, radius, radius, radius, Core.BORDER_REPLICATE);
+        int paddedCols = cols + 2 * radius;
+        byte[] in = new byte[padded.rows() * paddedCols * channels];
+        padded.get(0, 0, in);
+        band.release();
+        padded.release();
+
+        byte[] out = new byte[rows * cols * channels];
+        char[] columnFine = new char[paddedCols * 256];
+        char[] columnCoarse = new char[paddedCols * 16];
+        int[] kernelCoarse = new int[16];
+        int[] kernelFine = new int[256];
+        int[] fineUpdatedAt = new int[16];
+        int medianRank = diameter * diameter / 2;
+
+        for (int c = 0; c < channels; c++) {
+            Arrays.fill(columnFine, (char) 0);
+            Arrays.fill(columnCoarse, (char) 0);
+            for (int y = 0; y < diameter - 1; y++) {
+                for (int x = 0; x < paddedCols; x++) {
+                    int value = in[(y * paddedCols + x) * channels + c] & 0xff;
+                    columnFine[x * 256 + value]++;
+                    columnCoarse[x * 16 + (value >> 4)]++;
+                }
+            }
+
+            for (int y = 0; y < rows; y++) {
+                // Slide every column histogram down one row
+                int added = (y + diameter - 1) * paddedCols;
+                int removed = (y - 1) * paddedCols;
+                for (int x = 0; x < paddedCols; x++) {
+                    int value = in[(added + x) * channels + c] & 0xff;
+                    columnFine[x * 256 + value]++;
+                    columnCoarse[x * 16 + (value >> 4)]++;
+                    if (y > 0) {
+                        value = in[(removed + x) * channels + c] & 0xff;
+                        columnFine[x * 256 + value]--;
+                        columnCoarse[x * 16 + (value >> 4)]--;
+                    }
+                }
+
+                Arrays.fill(kernelCoarse, 0);
+                Arrays.fill(fineUpdatedAt, -diameter);
+                for (int x = 0; x < diameter; x++) {
+                    for (int b = 0; b < 16; b++) {
+                        kernelCoarse[b] += columnCoarse[x * 16 + b];
+                    }
+                }
+
+                for (int x = 0; x < cols; x++) {
+                    if (x > 0) {
+                        int enter = (x + diameter - 1) * 16;
+                        int leave = (x - 1) * 16;
+                        for (int b = 0; b < 16; b++) {
+                            kernelCoarse[b] += columnCoarse[enter + b] - columnCoarse[leave + b];
+                        }
+                    }
+
+                    int count = 0;
+                    int bucket = 0;
+                    while (count + kernelCoarse[bucket] <= medianRank) {
+                        count += kernelCoarse[bucket];
+                        bucket++;
+                    }
+
+                    int fine = bucket * 16;
+                    if (x - fineUpdatedAt[bucket] >= diameter) {
+                        // Too far behind, rebuild the bucket from the columns under the kernel
+                        for (int i = 0; i < 16; i++) {
+                            int sum = 0;
+                            for (int k = 0; k < diameter; k++) {
+                                sum += columnFine[(x + k) * 256 + fine + i];
+                            }
+                            kernelFine[fine + i] = sum;
+                        }
+                    } else {
+                        for (int step = fineUpdatedAt[bucket] + 1; step <= x; step++) {
+                            int enter = (step + diameter - 1) * 256 + fine;
+                            int leave = (step - 1) * 256 + fine;
+                            for (int i = 0; i < 16; i++) {
+                                kernelFine[fine + i] += columnFine[enter + i] - columnFine[leave + i];
+                            }
+                        }
+                    }
+                    fineUpdatedAt[bucket] = x;
+
+                    int value = fine;
+                    while (count + kernelFine[value] <= medianRank) {
+                        count += kernelFine[value];
+                        value++;
+                    }
+                    out[(y * cols + x) * channels + c] = (byte) value;
+                }
+            }
+        }
+
+        dst.put(top, 0, out);
+    }
+}
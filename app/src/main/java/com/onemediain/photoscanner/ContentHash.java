@@ -0,0 +1,96 @@
+package com.onemediain.photoscanner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A fast fingerprint of a file's content: SHA-1 over its length and CHUNKS evenly spaced
+ * blocks of CHUNK_SIZE bytes, including the first and the last. Photos differ in their headers
+ * and all through their compressed data, so the sample tells them apart while reading only a
+ * small, fixed amount of even a large file. Content already in memory can be hashed whole with
+ * ofAll() instead, which also tells apart edits between the sampled blocks.
+ */
+public class ContentHash {
+
+    private static final int CHUNKS = 16;
+    private static final int CHUNK_SIZE = 4096;
+
+    private ContentHash() {
+    }
+
+    public static String of(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return of(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param content - the bytes from its position to its limit are hashed
+     */
+    public static String of(ByteBuffer content) {
+        ByteBuffer data = content.slice();
+        long length = data.remaining();
+        MessageDigest digest = digest(length);
+
+        byte[] chunk = new byte[CHUNK_SIZE];
+        if (length <= (long) CHUNKS * CHUNK_SIZE) {
+            while (data.hasRemaining()) {
+                int count = Math.min(chunk.length, data.remaining());
+                data.get(chunk, 0, count);
+                digest.update(chunk, 0, count);
+            }
+        } else {
+            for (int i = 0; i < CHUNKS; i++) {
+                data.position((int) ((length - CHUNK_SIZE) * i / (CHUNKS - 1)));
+                data.get(chunk);
+                digest.update(chunk);
+            }
+        }
+        return hex(digest);
+    }
+
+    /**
+     * SHA-1 over the length and every byte of the content, for content that is read anyway.
+     *
+     * @param content - the bytes from its position to its limit are hashed
+     */
+    public static String ofAll(ByteBuffer content) {
+        ByteBuffer data = content.slice();
+        MessageDigest digest = digest(data.remaining());
+        digest.update(data);
+        return hex(digest);
+    }
+
+    /**
+     * @return a SHA-1 digest that has been fed the length
+     */
+    private static MessageDigest digest(long length) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            digest.update((byte) (length >>> shift));
+        }
+        return digest;
+    }
+
+    private static String hex(MessageDigest digest) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+}
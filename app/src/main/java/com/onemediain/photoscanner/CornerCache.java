@@ -0,0 +1,152 @@
+package com.onemediain.photoscanner;
+
+import android.util.Log;
+
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Page corners found for a photo, kept on disk so scanning the same photo again can warp
+ * straight away. Entries are keyed by the ContentHash of the photo and a description of the
+ * detector and its parameters, so changing a threshold doesn't return corners the new settings
+ * wouldn't find. Corners are stored relative to the image size, which makes them independent
+ * of the working resolution. Every entry holds the four corners of a page. The index is a small
+ * text file, one entry per line, rewritten on every change; the least recently used entries are
+ * dropped beyond MAX_ENTRIES.
+ */
+public class CornerCache {
+
+    private static final String TAG = "CornerCache";
+    private static final int MAX_ENTRIES = 500;
+    // x and y of four corners
+    private static final int VALUES = 8;
+
+    private final File mFile;
+    private final Map<String, double[]> mEntries = new LinkedHashMap<String, double[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    public CornerCache(File file) {
+        mFile = file;
+        load();
+    }
+
+    /**
+     * @param contentHash - ContentHash of the photo
+     * @param detector    - the detector and its parameters
+     * @param imageSize   - size of the image the corners are wanted for
+     * @return the corners in the order they were stored, or null
+     */
+    public synchronized List<Point> get(String contentHash, String detector, Size imageSize) {
+        if (contentHash == null) {
+            return null;
+        }
+        double[] relative = mEntries.get(contentHash + '\t' + detector);
+        if (relative == null) {
+            return null;
+        }
+        List<Point> corners = new ArrayList<>();
+        for (int i = 0; i < relative.length; i += 2) {
+            corners.add(new Point(relative[i] * imageSize.width, relative[i + 1] * imageSize.height));
+        }
+        return corners;
+    }
+
+    /**
+     * @param corners - the four corners of the page
+     */
+    public synchronized void put(String contentHash, String detector, List<Point> corners, Size imageSize) {
+        if (corners.size() * 2 != VALUES) {
+            throw new IllegalArgumentException("A page has four corners, not " + corners.size());
+        }
+        if (contentHash == null) {
+            return;
+        }
+        double[] relative = new double[corners.size() * 2];
+        for (int i = 0; i < corners.size(); i++) {
+            relative[i * 2] = corners.get(i).x / imageSize.width;
+            relative[i * 2 + 1] = corners.get(i).y / imageSize.height;
+        }
+        mEntries.put(contentHash + '\t' + detector, relative);
+        save();
+    }
+
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length != 3) {
+                        continue;
+                    }
+                    String[] values = fields[2].split(" ");
+                    if (values.length != VALUES) {
+                        // Warping needs four corners, anything else can't have been stored
+                        continue;
+                    }
+                    double[] relative = new double[values.length];
+                    for (int i = 0; i < values.length; i++) {
+                        relative[i] = Double.parseDouble(values[i]);
+                    }
+                    mEntries.put(fields[0] + '\t' + fields[1], relative);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.e(TAG, "Couldn't read " + mFile + ", starting empty", e);
+            mEntries.clear();
+        }
+    }
+
+    private void save() {
+        File partial = new File(mFile.getPath() + ".partial");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(partial), "UTF-8");
+            try {
+                // Oldest first, so loading restores the access order
+                Iterator<Map.Entry<String, double[]>> entries = mEntries.entrySet().iterator();
+                while (entries.hasNext()) {
+                    Map.Entry<String, double[]> entry = entries.next();
+                    StringBuilder line = new StringBuilder(entry.getKey()).append('\t');
+                    double[] relative = entry.getValue();
+                    for (int i = 0; i < relative.length; i++) {
+                        line.append(i == 0 ? "" : " ").append(String.format(Locale.US, "%.6f", relative[i]));
+                    }
+                    writer.write(line.append('\n').toString());
+                }
+            } finally {
+                writer.close();
+            }
+            if (!partial.renameTo(mFile)) {
+                throw new IOException("Couldn't rename " + partial);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't write " + mFile, e);
+            partial.delete();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.onemediain.photoscanner;
+
+import android.util.Log;
+
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Disk cache of images decoded and scaled to working resolution, stored as MatFiles, so
+ * reopening a photo is one sequential read instead of a JPEG decode of the original. Entries
+ * are keyed by the ContentHash of all the bytes of the original and the working resolution, so
+ * an edited photo or a different screen misses, whichever provider the photo comes from. The
+ * least recently used entries are deleted once the cache grows past its size limit.
+ */
+public class DecodedImageCache {
+
+    private static final String TAG = "DecodedImageCache";
+    private static final String SUFFIX = ".mat";
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    /**
+     * @param directory - where the entries live, created if needed
+     * @param maxBytes  - size limit of all entries together
+     */
+    public DecodedImageCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @param contentHash - ContentHash of the original
+     * @param width       - working resolution the image was scaled to fit
+     * @param height      - working resolution the image was scaled to fit
+     */
+    public static String key(String contentHash, int width, int height) {
+        String key = contentHash + '|' + width + 'x' + height;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the cached image, or null on a miss
+     */
+    public synchronized Mat get(String key) {
+        File file = new File(mDirectory, key + SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            Mat image = MatFile.read(file);
+            // The modification time doubles as the last use for trim()
+            file.setLastModified(System.currentTimeMillis());
+            return image;
+        } catch (IOException | RuntimeException e) {
+            // A header the Mat constructor rejects fails with CvException
+            Log.e(TAG, "Dropping unreadable entry " + file, e);
+            file.delete();
+            return null;
+        }
+    }
+
+    public synchronized void put(String key, Mat image) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Couldn't create " + mDirectory);
+            return;
+        }
+        File file = new File(mDirectory, key + SUFFIX);
+        File partial = new File(mDirectory, key + ".partial");
+        try {
+            MatFile.write(image, partial);
+            if (!partial.renameTo(file)) {
+                throw new IOException("Couldn't rename " + partial);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't cache " + key, e);
+            partial.delete();
+            return;
+        }
+        trim();
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits its size limit.
+     */
+    private void trim() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= mMaxBytes) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+            }
+        });
+        for (File file : files) {
+            if (total <= mMaxBytes) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.onemediain.photoscanner;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads the EXIF orientation tag straight from the bytes of a JPEG and turns images upright.
+ * ExifInterface on API 19 only reads files by path, and imdecode ignores the tag, so images
+ * decoded from a stream need both done here. Only the APP1 segments before the image data are
+ * looked at; anything malformed reads as NORMAL.
+ */
+public class ExifOrientation {
+
+    public static final int NORMAL = 1;
+    public static final int FLIP_HORIZONTAL = 2;
+    public static final int ROTATE_180 = 3;
+    public static final int FLIP_VERTICAL = 4;
+    public static final int TRANSPOSE = 5;
+    public static final int ROTATE_90 = 6;
+    public static final int TRANSVERSE = 7;
+    public static final int ROTATE_270 = 8;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TYPE_SHORT = 3;
+
+    private ExifOrientation() {
+    }
+
+    /**
+     * @param jpeg - the bytes from its position to its limit are read
+     * @return one of the orientation constants
+     */
+    public static int read(ByteBuffer jpeg) {
+        ByteBuffer data = jpeg.slice();
+        if (data.remaining() < 4 || (data.getShort(0) & 0xffff) != 0xffd8) {
+            return NORMAL;
+        }
+        int position = 2;
+        while (position + 4 <= data.limit()) {
+            if ((data.get(position) & 0xff) != 0xff) {
+                return NORMAL;
+            }
+            int marker = data.get(position + 1) & 0xff;
+            if (marker == 0xff) {
+                // Fill byte before a marker
+                position++;
+                continue;
+            }
+            if (marker == 0xda || marker == 0xd9) {
+                // Start of scan or end of image, no metadata follows
+                break;
+            }
+            int length = data.getShort(position + 2) & 0xffff;
+            if (marker == 0xe1 && position + 2 + length <= data.limit()) {
+                int orientation = readApp1(data, position + 4, position + 2 + length);
+                if (orientation != 0) {
+                    return orientation;
+                }
+            }
+            position += 2 + length;
+        }
+        return NORMAL;
+    }
+
+    /**
+     * @return the orientation in an Exif APP1 segment, or 0 if it has none
+     */
+    private static int readApp1(ByteBuffer data, int start, int end) {
+        // "Exif\0\0" and the TIFF header
+        if (end - start < 14 || data.getInt(start) != 0x45786966 || data.getShort(start + 4) != 0) {
+            return 0;
+        }
+        int tiff = start + 6;
+        ByteBuffer ifd = data.duplicate();
+        short byteOrder = data.getShort(tiff);
+        if (byteOrder == 0x4949) {
+            ifd.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (byteOrder != 0x4d4d) {
+            return 0;
+        }
+        if ((ifd.getShort(tiff + 2) & 0xffff) != 42) {
+            return 0;
+        }
+
+        long offset = ifd.getInt(tiff + 4) & 0xffffffffL;
+        if (offset > end - tiff - 2) {
+            return 0;
+        }
+        int entries = (int) (tiff + offset);
+        int count = ifd.getShort(entries) & 0xffff;
+        for (int i = 0; i < count; i++) {
+            int entry = entries + 2 + i * 12;
+            if (entry + 12 > end) {
+                return 0;
+            }
+            if ((ifd.getShort(entry) & 0xffff) == TAG_ORIENTATION) {
+                if ((ifd.getShort(entry + 2) & 0xffff) != TYPE_SHORT) {
+                    return 0;
+                }
+                int orientation = ifd.getShort(entry + 8) & 0xffff;
+                return orientation >= NORMAL && orientation <= ROTATE_270 ? orientation : 0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return whether the upright image has its width and height swapped
+     */
+    public static boolean swapsAxes(int orientation) {
+        return orientation >= TRANSPOSE && orientation <= ROTATE_270;
+    }
+
+    /**
+     * @return the image turned upright, or the image itself if it already is
+     */
+    public static Mat apply(Mat image, int orientation) {
+        Mat upright = new Mat();
+        switch (orientation) {
+            case FLIP_HORIZONTAL:
+                Core.flip(image, upright, 1);
+                break;
+            case ROTATE_180:
+                Core.flip(image, upright, -1);
+                break;
+            case FLIP_VERTICAL:
+                Core.flip(image, upright, 0);
+                break;
+            case TRANSPOSE:
+                Core.transpose(image, upright);
+                break;
+            case ROTATE_90:
+                Core.transpose(image, upright);
+                Core.flip(upright, upright, 1);
+                break;
+            case TRANSVERSE:
+                Core.transpose(image, upright);
+                Core.flip(upright, upright, -1);
+                break;
+            case ROTATE_270:
+                Core.transpose(image, upright);
+                Core.flip(upright, upright, 0);
+                break;
+            default:
+                upright.release();
+                return image;
+        }
+        return upright;
+    }
+}
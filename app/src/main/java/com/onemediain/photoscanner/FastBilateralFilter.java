@@ -0,0 +1,143 @@
+package com.onemediain.photoscanner;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Approximate edge preserving smoothing with the same parameters as Imgproc.bilateralFilter.
+ * The exact filter costs O(d^2) per pixel, which takes seconds for the d = 41 the app uses.
+ * Here the image is shrunk until the kernel is about MAX_LOW_DIAMETER pixels wide, the exact
+ * filter runs on the small image, and the result is brought back to full size with joint
+ * bilateral upsampling: every output pixel blends its four nearest low resolution results,
+ * weighted both by distance and by how close their colour is to the full resolution pixel,
+ * so edges stay where the full resolution image has them.
+ */
+public class FastBilateralFilter {
+
+    private static final int MAX_LOW_DIAMETER = 9;
+    private static final int BAND_ROWS = 64;
+
+    private FastBilateralFilter() {
+    }
+
+    /**
+     * @param src        - 8 bit image with one or three channels
+     * @param dst        - receives the filtered image
+     * @param diameter   - diameter of the pixel neighbourhood of the exact filter
+     * @param sigmaColor - filter sigma in the colour space
+     * @param sigmaSpace - filter sigma in the coordinate space, in full resolution pixels
+     */
+    public static void filter(Mat src, Mat dst, int diameter, double sigmaColor, double sigmaSpace) {
+        int factor = (diameter + MAX_LOW_DIAMETER - 1) / MAX_LOW_DIAMETER;
+        if (factor <= 1 || (src.type() != CvType.CV_8UC1 && src.type() != CvType.CV_8UC3)) {
+            Imgproc.bilateralFilter(src, dst, diameter, sigmaColor, sigmaSpace);
+            return;
+        }
+
+        Mat low = new Mat();
+        Imgproc.resize(src, low, new Size(Math.max(src.cols() / factor, 1), Math.max(src.rows() / factor, 1)),
+                0, 0, Imgproc.INTER_AREA);
+        Mat lowFiltered = new Mat();
+        Imgproc.bilateralFilter(low, lowFiltered, Math.max(diameter / factor, 3) | 1, sigmaColor, sigmaSpace / factor);
+
+        jointUpsample(src, low, lowFiltered, dst, sigmaColor);
+
+        low.release();
+        lowFiltered.release();
+    }
+
+    private static void jointUpsample(final Mat src, Mat low, Mat lowFiltered, final Mat dst, double sigmaColor) {
+        final int channels = src.channels();
+        final int lowWidth = low.cols();
+        final int lowHeight = low.rows();
+        final byte[] guide = new byte[lowWidth * lowHeight * channels];
+        final byte[] values = new byte[guide.length];
+        low.get(0, 0, guide);
+        lowFiltered.get(0, 0, values);
+
+        // Range weights indexed by the L1 colour distance
+        final float[] rangeWeight = new float[255 * channels + 1];
+        for (int i = 0; i < rangeWeight.length; i++) {
+            double distance = (double) i / channels;
+            rangeWeight[i] = (float) Math.exp(-0.5 * distance * distance / (sigmaColor * sigmaColor));
+        }
+
+        final int width = src.cols();
+        final int height = src.rows();
+        final float scaleX = (float) lowWidth / width;
+        final float scaleY = (float) lowHeight / height;
+        dst.create(height, width, src.type());
+
+        List<Runnable> bands = new ArrayList<>();
+        for (int top = 0; top < height; top += BAND_ROWS) {
+            final int bandTop = top;
+            final int bandRows = Math.min(BAND_ROWS, height - top);
+            bands.add(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] in = new byte[bandRows * width * channels];
+                    byte[] out = new byte[in.length];
+                    float[] sum = new float[channels];
+                    Mat band = src.submat(bandTop, bandTop + bandRows, 0, width);
+                    band.get(0, 0, in);
+                    band.release();
+
+                    for (int y = 0; y < bandRows; y++) {
+                        float fy = Math.max((bandTop + y + 0.5f) * scaleY - 0.5f, 0);
+                        int y0 = Math.min((int) fy, lowHeight - 1);
+                        int y1 = Math.min(y0 + 1, lowHeight - 1);
+                        float ay = Math.min(fy - y0, 1);
+
+                        for (int x = 0; x < width; x++) {
+                            float fx = Math.max((x + 0.5f) * scaleX - 0.5f, 0);
+                            int x0 = Math.min((int) fx, lowWidth - 1);
+                            int x1 = Math.min(x0 + 1, lowWidth - 1);
+                            float ax = Math.min(fx - x0, 1);
+                            int p = (y * width + x) * channels;
+
+                            float totalWeight = 0;
+                            for (int c = 0; c < channels; c++) {
+                                sum[c] = 0;
+                            }
+                            for (int n = 0; n < 4; n++) {
+                                int qx = (n & 1) == 0 ? x0 : x1;
+                                int qy = (n & 2) == 0 ? y0 : y1;
+                                float spatial = ((n & 1) == 0 ? 1 - ax : ax) * ((n & 2) == 0 ? 1 - ay : ay);
+                                int q = (qy * lowWidth + qx) * channels;
+
+                                int distance = 0;
+                                for (int c = 0; c < channels; c++) {
+                                    distance += Math.abs((in[p + c] & 0xff) - (guide[q + c] & 0xff));
+                                }
+                                float weight = spatial * rangeWeight[distance];
+                                totalWeight += weight;
+                                for (int c = 0; c < channels; c++) {
+                                    sum[c] += weight * (values[q + c] & 0xff);
+                                }
+                            }
+
+                            if (totalWeight < 1e-6f) {
+                                // No neighbour resembles this pixel, fall back to the closest result
+                                int q = ((ay < 0.5f ? y0 : y1) * lowWidth + (ax < 0.5f ? x0 : x1)) * channels;
+                                for (int c = 0; c < channels; c++) {
+                                    out[p + c] = values[q + c];
+                                }
+                            } else {
+                                for (int c = 0; c < channels; c++) {
+                                    out[p + c] = (byte) Math.min((int) (sum[c] / totalWeight + 0.5f), 255);
+                                }
+                            }
+                        }
+                    }
+                    dst.put(bandTop, 0, out);
+                }
+            });
+        }
+        ProcessingPool.runAll(bands);
+    }
+}
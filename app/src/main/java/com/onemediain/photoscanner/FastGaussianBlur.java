@@ -0,0 +1,83 @@
+package com.onemediain.photoscanner;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Gaussian blur whose cost does not grow with the kernel size. Small kernels go straight to
+ * Imgproc.GaussianBlur. For larger ones the image is reduced with pyrDown, the remaining part of
+ * the blur is applied to the small image, and pyrUp brings it back. Each pyramid level blurs
+ * with a variance of 4^level full resolution pixels on the way down and again on the way up,
+ * so the residual sigma left for the small image stays around one pixel whatever the kernel.
+ */
+public class FastGaussianBlur {
+
+    /**
+     * Largest kernel that is still applied directly.
+     */
+    public static final int MAX_DIRECT_KERNEL = 11;
+
+    private FastGaussianBlur() {
+    }
+
+    /**
+     * Same as Imgproc.GaussianBlur(src, dst, new Size(ksize, ksize), 0, 0).
+     */
+    public static void blur(Mat src, Mat dst, int ksize) {
+        blur(src, dst, ksize, sigmaForKernel(ksize));
+    }
+
+    /**
+     * @param ksize - odd kernel size, used as is when not above MAX_DIRECT_KERNEL
+     * @param sigma - the standard deviation of the blur in pixels
+     */
+    public static void blur(Mat src, Mat dst, int ksize, double sigma) {
+        int levels = 0;
+        while (ksize > MAX_DIRECT_KERNEL && pyramidVariance(levels + 1) < sigma * sigma
+                && Math.min(src.rows(), src.cols()) >> (levels + 1) > 1) {
+            levels++;
+        }
+        if (levels == 0) {
+            Imgproc.GaussianBlur(src, dst, new Size(ksize, ksize), sigma, sigma);
+            return;
+        }
+
+        Size[] sizes = new Size[levels];
+        Mat current = src;
+        for (int level = 0; level < levels; level++) {
+            sizes[level] = current.size();
+            Mat reduced = new Mat();
+            Imgproc.pyrDown(current, reduced);
+            if (current != src) {
+                current.release();
+            }
+            current = reduced;
+        }
+
+        double residualSigma = Math.sqrt((sigma * sigma - pyramidVariance(levels)) / (1 << (2 * levels)));
+        Imgproc.GaussianBlur(current, current, new Size(0, 0), residualSigma, residualSigma);
+
+        for (int level = levels - 1; level >= 0; level--) {
+            Mat expanded = level == 0 ? dst : new Mat();
+            Imgproc.pyrUp(current, expanded, sizes[level]);
+            current.release();
+            current = expanded;
+        }
+    }
+
+    /**
+     * The sigma OpenCV derives from a kernel size when none is given.
+     */
+    static double sigmaForKernel(int ksize) {
+        return 0.3 * ((ksize - 1) * 0.5 - 1) + 0.8;
+    }
+
+    /**
+     * Variance in full resolution pixels added by going down and back up the given number of
+     * pyramid levels: the 5 tap pyramid kernel has a variance of 1 at its own resolution.
+     */
+    private static double pyramidVariance(int levels) {
+        return 2.0 * ((1 << (2 * levels)) - 1) / 3.0;
+    }
+}
@@ -0,0 +1,199 @@
+package com.onemediain.photoscanner;
+
+import android.util.Log;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Timings of the fast filter implementations against the exact OpenCV calls they replace, and
+ * of tiled execution, in memory and on memory mapped files, against single calls. Each
+ * benchmark logs its report and returns it so the caller can show it.
+ */
+public class FilterBenchmark {
+
+    private static final String TAG = "FilterBenchmark";
+    private static final int RUNS = 3;
+
+    private FilterBenchmark() {
+    }
+
+    /**
+     * Runs every benchmark on the image.
+     *
+     * @return the reports, one per line
+     */
+    public static String runAll(Mat image) {
+        return bilateral(image) + "\n" + tileScaling(image) + "\n" + mappedTiles(image);
+    }
+
+    /**
+     * Compares FastBilateralFilter with Imgproc.bilateralFilter using the parameters of the
+     * Bilateral menu item, and reports the PSNR of the approximation against the exact result.
+     */
+    public static String bilateral(Mat image) {
+        int diameter = 41;
+        double sigmaColor = 150;
+        double sigmaSpace = 450;
+
+        Mat exact = new Mat();
+        long start = System.nanoTime();
+        Imgproc.bilateralFilter(image, exact, diameter, sigmaColor, sigmaSpace);
+        double exactMillis = (System.nanoTime() - start) / 1e6;
+
+        Mat approximate = new Mat();
+        // First run warms up the thread pool
+        FastBilateralFilter.filter(image, approximate, diameter, sigmaColor, sigmaSpace);
+        start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            FastBilateralFilter.filter(image, approximate, diameter, sigmaColor, sigmaSpace);
+        }
+        double approximateMillis = (System.nanoTime() - start) / 1e6 / RUNS;
+
+        double psnr = Core.PSNR(exact, approximate);
+        exact.release();
+        approximate.release();
+
+        return report(String.format(Locale.US, "Bilateral %dx%d: exact %.0f ms, fast %.1f ms (%.0fx), PSNR %.2f dB",
+                image.cols(), image.rows(), exactMillis, approximateMillis, exactMillis / approximateMillis, psnr));
+    }
+
+    /**
+     * Times a 15x15 box blur, a 9x9 median and a 9 pixel bilateral filter as a single call and
+     * through TileExecutor with one tile per core for 1, 2, 4, ... cores, which is the speed-up
+     * curve of tiling on this device.
+     */
+    public static String tileScaling(Mat image) {
+        StringBuilder result = new StringBuilder();
+        result.append(scaling(image, "Box blur 15", TileExecutor.haloForKernel(15), new TileExecutor.TileOperation() {
+            @Override
+            public void apply(Mat src, Mat dst) {
+                Imgproc.blur(src, dst, new Size(15, 15));
+            }
+        }));
+        result.append('\n').append(scaling(image, "Median 9", TileExecutor.haloForKernel(9), new TileExecutor.TileOperation() {
+            @Override
+            public void apply(Mat src, Mat dst) {
+                Imgproc.medianBlur(src, dst, 9);
+            }
+        }));
+        result.append('\n').append(scaling(image, "Bilateral 9", TileExecutor.haloForKernel(9), new TileExecutor.TileOperation() {
+            @Override
+            public void apply(Mat src, Mat dst) {
+                Imgproc.bilateralFilter(src, dst, 9, 75, 75);
+            }
+        }));
+        return result.toString();
+    }
+
+    private static String scaling(Mat image, String name, int halo, TileExecutor.TileOperation operation) {
+        Mat single = new Mat();
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            operation.apply(image, single);
+        }
+        double singleMillis = (System.nanoTime() - start) / 1e6 / RUNS;
+
+        StringBuilder curve = new StringBuilder();
+        Mat tiled = new Mat();
+        for (int tiles = 1; tiles <= ProcessingPool.getThreadCount(); tiles *= 2) {
+            TileExecutor executor = new TileExecutor(tiles);
+            executor.run(image, tiled, halo, operation);
+            start = System.nanoTime();
+            for (int i = 0; i < RUNS; i++) {
+                executor.run(image, tiled, halo, operation);
+            }
+            double tiledMillis = (System.nanoTime() - start) / 1e6 / RUNS;
+            curve.append(String.format(Locale.US, ", %d tiles %.1f ms (%.1fx)", tiles, tiledMillis, singleMillis / tiledMillis));
+        }
+
+        // Tiles must join without seams, so the last tiled result has to match the single call
+        Mat difference = new Mat();
+        Core.absdiff(single, tiled, difference);
+        double maxDifference = Core.minMaxLoc(difference.reshape(1)).maxVal;
+        difference.release();
+        single.release();
+        tiled.release();
+
+        return report(String.format(Locale.US, "%s %dx%d: single %.1f ms%s, max difference %.0f",
+                name, image.cols(), image.rows(), singleMillis, curve, maxDifference));
+    }
+
+    /**
+     * Times a 15x15 box blur tiled over a MappedMat copy of the image against a single call in
+     * memory, which is the cost of keeping an image out of memory.
+     */
+    public static String mappedTiles(Mat image) {
+        TileExecutor.TileOperation operation = new TileExecutor.TileOperation() {
+            @Override
+            public void apply(Mat src, Mat dst) {
+                Imgproc.blur(src, dst, new Size(15, 15));
+            }
+        };
+        Mat single = new Mat();
+        long start = System.nanoTime();
+        operation.apply(image, single);
+        double singleMillis = (System.nanoTime() - start) / 1e6;
+
+        File srcFile = null;
+        File dstFile = null;
+        MappedMat src = null;
+        MappedMat dst = null;
+        try {
+            srcFile = File.createTempFile("benchmark", ".mat");
+            dstFile = File.createTempFile("benchmark", ".mat");
+            src = MappedMat.create(srcFile, image.rows(), image.cols(), image.type());
+            dst = MappedMat.create(dstFile, image.rows(), image.cols(), image.type());
+            src.writeRows(image, 0);
+            start = System.nanoTime();
+            TileExecutor.forAllCores().run(src, dst, TileExecutor.haloForKernel(15), operation);
+            double mappedMillis = (System.nanoTime() - start) / 1e6;
+
+            // The mapped result has to match the single call exactly
+            Mat mapped = dst.readRows(0, dst.rows());
+            Mat difference = new Mat();
+            Core.absdiff(single, mapped, difference);
+            double maxDifference = Core.minMaxLoc(difference.reshape(1)).maxVal;
+            difference.release();
+            mapped.release();
+
+            return report(String.format(Locale.US, "Mapped box blur 15 %dx%d: single %.1f ms, mapped tiles %.1f ms, max difference %.0f",
+                    image.cols(), image.rows(), singleMillis, mappedMillis, maxDifference));
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't map the benchmark image", e);
+            return report("Mapped box blur 15: " + e.getMessage());
+        } finally {
+            single.release();
+            // Closed before the files are deleted, also when the tiles failed
+            close(src);
+            close(dst);
+            if (srcFile != null) {
+                srcFile.delete();
+            }
+            if (dstFile != null) {
+                dstFile.delete();
+            }
+        }
+    }
+
+    private static void close(MappedMat mat) {
+        if (mat != null) {
+            try {
+                mat.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't close " + mat.getFile(), e);
+            }
+        }
+    }
+
+    private static String report(String result) {
+        Log.i(TAG, result);
+        return result;
+    }
+}
@@ -0,0 +1,304 @@
+package com.onemediain.photoscanner;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Declares image processing as chains of stages and runs several chains over one image
+ * together, e.g.
+ * <pre>
+ *     Stage edges = FilterGraph.source().gray().canny(100, 200);
+ *     Stage lines = edges.houghLinesP(180, 60, 10);
+ *     Mat[] results = FilterGraph.run(sampledImage, edges, lines);
+ * </pre>
+ * Stages are identified by the operations that lead to them, so a prefix shared by several
+ * requested outputs is computed once even when the chains were declared separately. While
+ * running, an intermediate result is handed back to a free list as soon as its last consumer
+ * has run, and later stages write into those buffers instead of allocating new ones.
+ * Per pixel operations on 8 bit values (linear, gamma, threshold, invert) that follow each
+ * other are folded into a single lookup table when declared, so they cost one pass together.
+ */
+public class FilterGraph {
+
+    private FilterGraph() {
+    }
+
+    /**
+     * The image passed to run.
+     */
+    public static Stage source() {
+        return new Stage(null, "source", null, null);
+    }
+
+    /**
+     * Runs the stages needed for the requested outputs, each at most once.
+     *
+     * @param source  - the input image; it is never written to
+     * @param outputs - the stages whose results are wanted
+     * @return the results in the order of outputs, owned by the caller; a requested source()
+     * is returned as a copy, so releasing the results never releases the input
+     */
+    public static Mat[] run(Mat source, Stage... outputs) {
+        Map<String, Node> nodes = new LinkedHashMap<>();
+        for (Stage output : outputs) {
+            collect(output, nodes).output = true;
+        }
+
+        List<Mat> free = new ArrayList<>();
+        for (Node node : nodes.values()) {
+            if (node.stage.mParent == null) {
+                node.result = source;
+                continue;
+            }
+            Node parent = nodes.get(node.stage.mParent.mKey);
+            node.result = free.isEmpty() ? new Mat() : free.remove(free.size() - 1);
+            node.stage.mOperation.apply(parent.result, node.result);
+
+            if (--parent.consumers == 0 && !parent.output && parent.result != source) {
+                free.add(parent.result);
+            }
+        }
+        for (Mat buffer : free) {
+            buffer.release();
+        }
+
+        Mat[] results = new Mat[outputs.length];
+        for (int i = 0; i < outputs.length; i++) {
+            Mat result = nodes.get(outputs[i].mKey).result;
+            results[i] = result == source ? source.clone() : result;
+        }
+        return results;
+    }
+
+    /**
+     * Adds a stage and its ancestors to nodes, parents first.
+     */
+    private static Node collect(Stage stage, Map<String, Node> nodes) {
+        Node node = nodes.get(stage.mKey);
+        if (node == null) {
+            if (stage.mParent != null) {
+                collect(stage.mParent, nodes).consumers++;
+            }
+            node = new Node(stage);
+            nodes.put(stage.mKey, node);
+        }
+        return node;
+    }
+
+    private static final class Node {
+        final Stage stage;
+        Mat result;
+        int consumers;
+        boolean output;
+
+        Node(Stage stage) {
+            this.stage = stage;
+        }
+    }
+
+    /**
+     * One operation in a chain. Stages are immutable; every method returns a new stage that
+     * consumes this one.
+     */
+    public static final class Stage {
+
+        private final Stage mParent;
+        private final String mKey;
+        private final TileExecutor.TileOperation mOperation;
+        private final byte[] mTable;
+
+        private Stage(Stage parent, String key, TileExecutor.TileOperation operation, byte[] table) {
+            mParent = parent;
+            mKey = parent == null ? key : parent.mKey + "/" + key;
+            mOperation = operation;
+            mTable = table;
+        }
+
+        /**
+         * @return the names of the stages from the source to this one, which describe what it
+         * computes and with which parameters
+         */
+        public String getKey() {
+            return mKey;
+        }
+
+        /**
+         * Appends any operation that reads its source and writes dst. The name must describe
+         * the operation and its parameters, as stages with equal names are merged.
+         */
+        public Stage then(String name, TileExecutor.TileOperation operation) {
+            return new Stage(this, name, operation, null);
+        }
+
+        public Stage gray() {
+            return then("gray", new TileExecutor.TileOperation() {
+                @Override
+                public void apply(Mat src, Mat dst) {
+                    Imgproc.cvtColor(src, dst, Imgproc.COLOR_RGB2GRAY);
+                }
+            });
+        }
+
+        public Stage blur(final int ksize) {
+            return then("blur(" + ksize + ")", new TileExecutor.TileOperation() {
+                @Override
+                public void apply(Mat src, Mat dst) {
+                    TileExecutor.forAllCores().run(src, dst, TileExecutor.haloForKernel(ksize),
+                            new TileExecutor.TileOperation() {
+                                @Override
+                                public void apply(Mat src, Mat dst) {
+                                    Imgproc.blur(src, dst, new Size(ksize, ksize));
+                                }
+                            });
+                }
+            });
+        }
+
+        /**
+         * Gaussian blur with the sigma of the kernel size. Kernels above
+         * FastGaussianBlur.MAX_DIRECT_KERNEL switch to its pyramid cascade by themselves.
+         */
+        public Stage gaussian(final int ksize) {
+            return then("gaussian(" + ksize + ")", new TileExecutor.TileOperation() {
+                @Override
+                public void apply(Mat src, Mat dst) {
+                    FastGaussianBlur.blur(src, dst, ksize);
+                }
+            });
+        }
+
+        public Stage median(final int ksize) {
+            return then("median(" + ksize + ")", new TileExecutor.TileOperation() {
+                @Override
+                public void apply(Mat src, Mat dst) {
+                    ConstantTimeMedian.medianBlur(src, dst, ksize);
+                }
+            });
+        }
+
+        public Stage bilateral(final int diameter, final double sigmaColor, final double sigmaSpace) {
+            return then("bilateral(" + diameter + "," + sigmaColor + "," + sigmaSpace + ")", new TileExecutor.TileOperation() {
+                @Override
+                public void apply(Mat src, Mat dst) {
+                    FastBilateralFilter.filter(src, dst, diameter, sigmaColor, sigmaSpace);
+                }
+            });
+        }
+
+        /**
+         * Sobel gradient magnitude of a gray stage.
+         */
+        public Stage sobel() {
+            return then("sobel", new TileExecutor.TileOperation() {
+                @Override
+                public void apply(Mat src, Mat dst) {
+                    FusedSobel.gradient(src, dst, null, null, null);
+                }
+            });
+        }
+
+        /**
+         * Canny edges of a gray stage.
+         */
+        public Stage canny(final double lowThreshold, final double highThreshold) {
+            return then("canny(" + lowThreshold + "," + highThreshold + ")", new TileExecutor.TileOperation() {
+                @Override
+                public void apply(Mat src, Mat dst) {
+                    Imgproc.Canny(src, dst, lowThreshold, highThreshold);
+                }
+            });
+        }
+
+        /**
+         * Line segments of an edge stage, as returned by Imgproc.HoughLinesP with a resolution
+         * of one pixel and one degree.
+         */
+        public Stage houghLinesP(final int threshold, final double minLineLength, final double maxLineGap) {
+            return then("houghLinesP(" + threshold + "," + minLineLength + "," + maxLineGap + ")", new TileExecutor.TileOperation() {
+                @Override
+                public void apply(Mat src, Mat dst) {
+                    Imgproc.HoughLinesP(src, dst, 1, Math.PI / 180, threshold, minLineLength, maxLineGap);
+                }
+            });
+        }
+
+        /**
+         * alpha * value + beta, saturated.
+         */
+        public Stage linear(double alpha, double beta) {
+            byte[] table = new byte[256];
+            for (int value = 0; value < 256; value++) {
+                table[value] = saturate(alpha * value + beta);
+            }
+            return point("linear(" + alpha + "," + beta + ")", table);
+        }
+
+        public Stage gamma(double gamma) {
+            byte[] table = new byte[256];
+            for (int value = 0; value < 256; value++) {
+                table[value] = saturate(255 * Math.pow(value / 255.0, gamma));
+            }
+            return point("gamma(" + gamma + ")", table);
+        }
+
+        /**
+         * 255 above the threshold, 0 otherwise, like Imgproc.THRESH_BINARY.
+         */
+        public Stage threshold(int threshold) {
+            byte[] table = new byte[256];
+            for (int value = threshold + 1; value < 256; value++) {
+                table[value] = (byte) 255;
+            }
+            return point("threshold(" + threshold + ")", table);
+        }
+
+        public Stage invert() {
+            byte[] table = new byte[256];
+            for (int value = 0; value < 256; value++) {
+                table[value] = (byte) (255 - value);
+            }
+            return point("invert", table);
+        }
+
+        /**
+         * Adds a lookup table stage, composed with this stage's table if this is one as well.
+         */
+        private Stage point(String name, byte[] table) {
+            if (mTable == null) {
+                return new Stage(this, name, lookup(table), table);
+            }
+            byte[] composed = new byte[256];
+            for (int value = 0; value < 256; value++) {
+                composed[value] = table[mTable[value] & 0xff];
+            }
+            String key = mKey.substring(mParent.mKey.length() + 1) + "+" + name;
+            return new Stage(mParent, key, lookup(composed), composed);
+        }
+
+        private static TileExecutor.TileOperation lookup(final byte[] table) {
+            return new TileExecutor.TileOperation() {
+                @Override
+                public void apply(Mat src, Mat dst) {
+                    // The table lives only as long as the call, stages are kept and reused
+                    Mat lut = new Mat(1, 256, CvType.CV_8UC1);
+                    lut.put(0, 0, table);
+                    Core.LUT(src, lut, dst);
+                    lut.release();
+                }
+            };
+        }
+
+        private static byte saturate(double value) {
+            return (byte) Math.min(Math.max(Math.round(value), 0), 255);
+        }
+    }
+}
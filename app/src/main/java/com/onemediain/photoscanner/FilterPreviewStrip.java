@@ -0,0 +1,111 @@
+package com.onemediain.photoscanner;
+
+import android.graphics.Bitmap;
+import android.view.View;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A row of thumbnails, one per ImageFilter, computed in parallel on a small copy of the image
+ * as soon as it is loaded. Tapping a thumbnail reports the filter, so only the chosen filter is
+ * ever run at full size. Previews run on their own threads rather than the ProcessingPool,
+ * because the filters split their work on the ProcessingPool and wait for it.
+ */
+public class FilterPreviewStrip {
+
+    public interface OnFilterSelectedListener {
+        void onFilterSelected(ImageFilter filter);
+    }
+
+    private final LinearLayout mContainer;
+    private final int mThumbnailHeight;
+    private final ExecutorService mExecutor;
+    private OnFilterSelectedListener mListener;
+    private int mGeneration;
+
+    /**
+     * @param container       - horizontal layout that receives the thumbnails
+     * @param thumbnailHeight - height of a thumbnail in pixels
+     */
+    public FilterPreviewStrip(LinearLayout container, int thumbnailHeight) {
+        mContainer = container;
+        mThumbnailHeight = thumbnailHeight;
+        mExecutor = Executors.newFixedThreadPool(
+                Math.min(ImageFilter.values().length, ProcessingPool.getThreadCount()));
+    }
+
+    public void setOnFilterSelectedListener(OnFilterSelectedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Replaces the thumbnails with previews of a new image. Must be called on the UI thread;
+     * previews of an earlier image that are still being computed are dropped.
+     */
+    public void show(Mat image) {
+        final int generation = ++mGeneration;
+        mContainer.removeAllViews();
+
+        final double scale = Math.min((double) mThumbnailHeight / image.rows(), 1.0);
+        final Mat thumbnail = new Mat();
+        Imgproc.resize(image, thumbnail, new Size(), scale, scale, Imgproc.INTER_AREA);
+
+        ImageFilter[] filters = ImageFilter.values();
+        final AtomicInteger remaining = new AtomicInteger(filters.length);
+        for (final ImageFilter filter : filters) {
+            final ImageView preview = new ImageView(mContainer.getContext());
+            preview.setScaleType(ImageView.ScaleType.FIT_XY);
+            preview.setPadding(2, 0, 2, 0);
+            preview.setContentDescription(mContainer.getContext().getString(filter.getTitle()));
+            preview.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    if (mListener != null) {
+                        mListener.onFilterSelected(filter);
+                    }
+                }
+            });
+            mContainer.addView(preview, new LinearLayout.LayoutParams(thumbnail.cols(), thumbnail.rows()));
+
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Mat filtered = filter.apply(thumbnail, scale);
+                    final Bitmap bitmap = Bitmap.createBitmap(filtered.cols(), filtered.rows(), Bitmap.Config.RGB_565);
+                    Utils.matToBitmap(filtered, bitmap);
+                    filtered.release();
+                    if (remaining.decrementAndGet() == 0) {
+                        thumbnail.release();
+                    }
+
+                    mContainer.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (generation == mGeneration) {
+                                preview.setImageBitmap(bitmap);
+                            } else {
+                                bitmap.recycle();
+                            }
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops the preview threads.
+     */
+    public void release() {
+        mExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,80 @@
+package com.onemediain.photoscanner;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 3x3 Sobel gradient computed in a single pass over the gray image by native-lib. It replaces
+ * the Sobel x / Sobel y / convertScaleAbs x2 / addWeighted chain, which reads and writes the
+ * whole image six times through four temporaries. The optional 16 bit derivatives can be fed
+ * straight to Imgproc.Canny(dx, dy, ...) and the orientation map to line grouping, so neither
+ * has to differentiate the image again.
+ */
+public class FusedSobel {
+
+    private static final int BAND_ROWS = 64;
+
+    static {
+        System.loadLibrary("native-lib");
+    }
+
+    private FusedSobel() {
+    }
+
+    /**
+     * @param gray        - CV_8UC1 image
+     * @param magnitude   - receives the CV_8UC1 blend 0.5 * |dx| + 0.5 * |dy|
+     * @param dx          - receives the CV_16SC1 x derivative, or null
+     * @param dy          - receives the CV_16SC1 y derivative, or null (given together with dx)
+     * @param orientation - receives the CV_8UC1 gradient direction in degrees [0, 180), or null
+     */
+    public static void gradient(final Mat gray, final Mat magnitude, Mat dx, Mat dy, Mat orientation) {
+        if (gray.type() != CvType.CV_8UC1) {
+            throw new IllegalArgumentException("FusedSobel needs a CV_8UC1 image, got " + gray);
+        }
+        if ((dx == null) != (dy == null)) {
+            throw new IllegalArgumentException("dx and dy must be requested together");
+        }
+        final int rows = gray.rows();
+        final int cols = gray.cols();
+
+        magnitude.create(rows, cols, CvType.CV_8UC1);
+        if (dx != null) {
+            dx.create(rows, cols, CvType.CV_16SC1);
+            dy.create(rows, cols, CvType.CV_16SC1);
+        }
+        if (orientation != null) {
+            orientation.create(rows, cols, CvType.CV_8UC1);
+        }
+
+        final long dxAddr = dx != null ? dx.dataAddr() : 0;
+        final long dyAddr = dy != null ? dy.dataAddr() : 0;
+        final long derivativeStep = dx != null ? dx.step1() * dx.elemSize1() : 0;
+        final long orientationAddr = orientation != null ? orientation.dataAddr() : 0;
+        final long orientationStep = orientation != null ? orientation.step1() : 0;
+
+        List<Runnable> bands = new ArrayList<>();
+        for (int top = 0; top < rows; top += BAND_ROWS) {
+            final int bandTop = top;
+            final int bandBottom = Math.min(top + BAND_ROWS, rows);
+            bands.add(new Runnable() {
+                @Override
+                public void run() {
+                    nativeGradient(gray.dataAddr(), gray.step1(), rows, cols, bandTop, bandBottom,
+                            magnitude.dataAddr(), magnitude.step1(),
+                            dxAddr, dyAddr, derivativeStep, orientationAddr, orientationStep);
+                }
+            });
+        }
+        ProcessingPool.runAll(bands);
+    }
+
+    private static native void nativeGradient(long srcAddr, long srcStep, int rows, int cols,
+                                              int rowStart, int rowEnd,
+                                              long magnitudeAddr, long magnitudeStep,
+                                              long dxAddr, long dyAddr, long derivativeStep,
+                                              long orientationAddr, long orientationStep);
+}
@@ -0,0 +1,44 @@
+package com.onemediain.photoscanner;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Removes shadows and uneven lighting from a photographed page. The paper background is
+ * estimated on a copy that is a quarter of the size in each direction (1/16 of the pixels):
+ * a morphological close wipes out the dark ink, a median as wide as the close smooths the
+ * blocks it leaves, and the estimate is scaled back up and divided out of the full resolution
+ * page. Both kernels grow with the page, so the median runs in ConstantTimeMedian.
+ */
+public class IlluminationFlattener {
+
+    private static final double DOWNSCALE = 0.25;
+
+    private IlluminationFlattener() {
+    }
+
+    /**
+     * @param src - 8 bit page with one or three channels
+     * @param dst - receives the page with the background brought to white
+     */
+    public static void flatten(Mat src, Mat dst) {
+        Mat background = new Mat();
+        Imgproc.resize(src, background, new Size(), DOWNSCALE, DOWNSCALE, Imgproc.INTER_AREA);
+
+        // The structuring element must be wider than the thickest stroke to remove the ink
+        int kernelSize = Math.max(7, Math.min(background.rows(), background.cols()) / 30) | 1;
+        Mat kernel = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE, new Size(kernelSize, kernelSize));
+        Imgproc.morphologyEx(background, background, Imgproc.MORPH_CLOSE, kernel);
+        ConstantTimeMedian.medianBlur(background, background, kernelSize);
+
+        Mat fullBackground = new Mat();
+        Imgproc.resize(background, fullBackground, src.size(), 0, 0, Imgproc.INTER_LINEAR);
+        Core.divide(src, fullBackground, dst, 255);
+
+        kernel.release();
+        background.release();
+        fullBackground.release();
+    }
+}
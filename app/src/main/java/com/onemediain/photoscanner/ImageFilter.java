@@ -0,0 +1,99 @@
+package com.onemediain.photoscanner;
+
+import com.onemediain.photoscanner.FilterGraph.Stage;
+
+import org.opencv.core.Mat;
+
+/**
+ * The smoothing, edge detection and tone filters offered in the menu and the preview strip,
+ * which share them. Kernel sizes are chosen for sampledImage; when a filter runs on a smaller
+ * copy of it the kernels shrink by the same scale, so a thumbnail looks like a small version of
+ * the full size result.
+ */
+public enum ImageFilter {
+
+    AVERAGE(R.string.action_average) {
+        @Override
+        public Stage stage(double scale) {
+            return FilterGraph.source().blur(scaleKernel(7, scale));
+        }
+    },
+    GAUSSIAN(R.string.action_gaussian) {
+        @Override
+        public Stage stage(double scale) {
+            return FilterGraph.source().gaussian(scaleKernel(35, scale));
+        }
+    },
+    MEDIAN(R.string.action_median) {
+        @Override
+        public Stage stage(double scale) {
+            return FilterGraph.source().median(scaleKernel(5, scale));
+        }
+    },
+    BILATERAL(R.string.action_bilateral) {
+        @Override
+        public Stage stage(double scale) {
+            return FilterGraph.source().bilateral(scaleKernel(41, scale), 150, 450 * scale);
+        }
+    },
+    SOBEL(R.string.action_sobel) {
+        @Override
+        public Stage stage(double scale) {
+            // Convert first so the blur and the gradient only touch one channel
+            return FilterGraph.source().gray().gaussian(scaleKernel(7, scale)).sobel();
+        }
+    },
+    CANNY(R.string.action_canny) {
+        @Override
+        public Stage stage(double scale) {
+            return FilterGraph.source().gray().canny(100, 200);
+        }
+    },
+    CONTRAST(R.string.action_contrast) {
+        @Override
+        public Stage stage(double scale) {
+            // Stretch and darken the mid tones, fused into one lookup table
+            return FilterGraph.source().gray().linear(1.5, -40).gamma(1.5);
+        }
+    };
+
+    private final int mTitle;
+
+    ImageFilter(int title) {
+        mTitle = title;
+    }
+
+    /**
+     * @return the string resource naming the filter
+     */
+    public int getTitle() {
+        return mTitle;
+    }
+
+    /**
+     * Filters an image at the resolution of sampledImage.
+     */
+    public Mat apply(Mat image) {
+        return apply(image, 1);
+    }
+
+    /**
+     * @param image - RGB image
+     * @param scale - size of image relative to sampledImage
+     * @return the filtered image
+     */
+    public Mat apply(Mat image, double scale) {
+        return FilterGraph.run(image, stage(scale))[0];
+    }
+
+    /**
+     * The filter as a FilterGraph stage, so it can be run together with other stages.
+     *
+     * @param scale - size of the source image relative to sampledImage
+     */
+    public abstract Stage stage(double scale);
+
+    private static int scaleKernel(int ksize, double scale) {
+        return Math.max((int) Math.round(ksize * scale), 3) | 1;
+    }
+}
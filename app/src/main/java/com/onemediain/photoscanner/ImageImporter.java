@@ -0,0 +1,173 @@
+package com.onemediain.photoscanner;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Imports images from any content URI by reading its stream into a reusable native buffer and
+ * decoding that with imdecode. Unlike resolving the URI to a file path, this works for cloud
+ * and document providers and never copies the image to a temporary file. The buffer is a row
+ * Mat, so imdecode reads the bytes where they were read to, and it is kept for the next import.
+ * Streams of file descriptors, which is what most providers hand out, are read through their
+ * FileChannel straight into the buffer, sized from the file; pipes are read like other streams.
+ */
+public class ImageImporter {
+
+    private static final int INITIAL_CAPACITY = 4 * 1024 * 1024;
+
+    private final ContentResolver mResolver;
+    private Mat mBuffer;
+    // A direct view of mBuffer, holding the bytes of the last image read
+    private ByteBuffer mBytes;
+
+    public ImageImporter(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Reads the content of a URI into the buffer, replacing the last image.
+     *
+     * @return the size of the content in bytes
+     */
+    public synchronized int read(Uri uri) throws IOException {
+        InputStream in = mResolver.openInputStream(uri);
+        if (in == null) {
+            throw new FileNotFoundException("No content for " + uri);
+        }
+        try {
+            if (mBytes != null) {
+                mBytes.clear();
+            }
+            FileChannel fileChannel = in instanceof FileInputStream ? ((FileInputStream) in).getChannel() : null;
+            long remaining = fileChannel != null ? remaining(fileChannel) : -1;
+            ReadableByteChannel channel;
+            if (remaining >= 0) {
+                // One more byte than the file, so the end of the stream is read without growing
+                ensureCapacity(remaining + 1);
+                channel = fileChannel;
+            } else {
+                ensureCapacity(INITIAL_CAPACITY);
+                channel = Channels.newChannel(in);
+            }
+            while (true) {
+                if (!mBytes.hasRemaining()) {
+                    ensureCapacity(2L * mBytes.capacity());
+                }
+                if (channel.read(mBytes) < 0) {
+                    break;
+                }
+            }
+            mBytes.flip();
+            return mBytes.remaining();
+        } catch (IOException e) {
+            if (mBytes != null) {
+                mBytes.limit(0);
+            }
+            throw e;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the bytes left in a file, or -1 if the channel is a pipe or socket, whose size
+     * and position fail or are meaningless
+     */
+    private static long remaining(FileChannel channel) {
+        try {
+            long size = channel.size();
+            long position = channel.position();
+            return size > 0 && position <= size ? size - position : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the sampled ContentHash of the last image read
+     */
+    public synchronized String contentHash() {
+        return ContentHash.of(bytes());
+    }
+
+    /**
+     * @return the ContentHash of all the bytes of the last image read
+     */
+    public synchronized String fullContentHash() {
+        return ContentHash.ofAll(bytes());
+    }
+
+    /**
+     * @return the ExifOrientation of the last image read
+     */
+    public synchronized int orientation() {
+        return ExifOrientation.read(bytes());
+    }
+
+    /**
+     * Decodes the last image read, as imdecode returns it: BGR and not turned upright.
+     */
+    public synchronized Mat decode() throws IOException {
+        int length = bytes().remaining();
+        if (length == 0) {
+            throw new IOException("The image is empty");
+        }
+        Mat encoded = mBuffer.colRange(0, length);
+        Mat image = Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_COLOR);
+        encoded.release();
+        if (image.empty()) {
+            throw new IOException("Couldn't decode the image");
+        }
+        return image;
+    }
+
+    public synchronized void release() {
+        if (mBuffer != null) {
+            mBuffer.release();
+            mBuffer = null;
+            mBytes = null;
+        }
+    }
+
+    private ByteBuffer bytes() {
+        if (mBytes == null) {
+            throw new IllegalStateException("No image has been read");
+        }
+        return mBytes.duplicate();
+    }
+
+    /**
+     * Grows the buffer to hold at least capacity bytes, keeping the bytes read so far.
+     */
+    private void ensureCapacity(long capacity) throws IOException {
+        if (mBytes != null && mBytes.capacity() >= capacity) {
+            return;
+        }
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IOException("Image is too large to import");
+        }
+        Mat buffer = new Mat(1, (int) capacity, CvType.CV_8UC1);
+        ByteBuffer bytes = MatFile.wrap(buffer.dataAddr(), capacity);
+        if (mBytes != null) {
+            // Keep the bytes before the position
+            mBytes.flip();
+            bytes.put(mBytes);
+            mBuffer.release();
+        }
+        mBuffer = buffer;
+        mBytes = bytes;
+    }
+}
@@ -0,0 +1,143 @@
+package com.onemediain.photoscanner;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a PalettePage as an indexed colour PNG, with as few bits per pixel as its palette
+ * allows. Rows are packed and compressed one at a time straight into IDAT chunks.
+ */
+public class IndexedPngWriter {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final int COLOR_TYPE_INDEXED = 3;
+    private static final int MAX_CHUNK = 64 * 1024;
+
+    private IndexedPngWriter() {
+    }
+
+    public static void write(PalettePage page, File file) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            write(page, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    public static void write(PalettePage page, OutputStream out) throws IOException {
+        int width = page.getWidth();
+        int height = page.getHeight();
+        int colors = page.getColorCount();
+        int bitDepth = colors <= 2 ? 1 : colors <= 4 ? 2 : colors <= 16 ? 4 : 8;
+
+        out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = (byte) bitDepth;
+        header[9] = COLOR_TYPE_INDEXED;
+        writeChunk(out, "IHDR", header, header.length);
+        writeChunk(out, "PLTE", page.getPalette(), page.getPalette().length);
+
+        // The deflater holds native memory until end(), also when writing fails
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            DeflaterOutputStream idat = new DeflaterOutputStream(new ChunkOutputStream(out, "IDAT"), deflater, MAX_CHUNK);
+            int pixelsPerByte = 8 / bitDepth;
+            // Filter type byte followed by the packed indices
+            byte[] row = new byte[1 + (width + pixelsPerByte - 1) / pixelsPerByte];
+            byte[] indices = page.getIndices();
+            for (int y = 0; y < height; y++) {
+                Arrays.fill(row, (byte) 0);
+                int offset = y * width;
+                for (int x = 0; x < width; x++) {
+                    int shift = 8 - bitDepth * (x % pixelsPerByte + 1);
+                    row[1 + x / pixelsPerByte] |= (indices[offset + x] & 0xff) << shift;
+                }
+                idat.write(row);
+            }
+            idat.finish();
+            idat.flush();
+        } finally {
+            deflater.end();
+        }
+
+        writeChunk(out, "IEND", new byte[0], 0);
+    }
+
+    private static void writeChunk(OutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        byte[] lengthBytes = new byte[4];
+        putInt(lengthBytes, 0, length);
+        out.write(lengthBytes);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        byte[] crcBytes = new byte[4];
+        putInt(crcBytes, 0, (int) crc.getValue());
+        out.write(crcBytes);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Collects compressed data and writes it out as chunks of at most MAX_CHUNK bytes.
+     */
+    private static final class ChunkOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        private final String mType;
+        private final byte[] mBuffer = new byte[MAX_CHUNK];
+        private int mLength;
+
+        ChunkOutputStream(OutputStream out, String type) {
+            mOut = out;
+            mType = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mLength == mBuffer.length) {
+                flush();
+            }
+            mBuffer[mLength++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mLength == mBuffer.length) {
+                    flush();
+                }
+                int count = Math.min(len, mBuffer.length - mLength);
+                System.arraycopy(b, off, mBuffer, mLength, count);
+                mLength += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mLength > 0) {
+                writeChunk(mOut, mType, mBuffer, mLength);
+                mLength = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.onemediain.photoscanner;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An image too large to keep on the native heap, held in a memory mapped MatFile instead, so
+ * the OS pages its rows in and out as they are used. The OpenCV Java wrapper cannot make a Mat
+ * over the mapping, so the image is worked on in bands of rows: readRows() copies a band into
+ * a Mat and writeRows() copies one back, and TileExecutor runs operations on it tile by tile.
+ * Bands of different rows can be read and written from different threads at the same time.
+ * The file stays a valid MatFile, which MatFile.read() loads and PdfWriter.addRawPage()
+ * exports straight from the mapping.
+ */
+public class MappedMat implements Closeable {
+
+    private final File mFile;
+    private final RandomAccessFile mAccess;
+    private final MappedByteBuffer mMapped;
+    private final int mRows;
+    private final int mCols;
+    private final int mType;
+    private final int mRowBytes;
+
+    private MappedMat(File file, RandomAccessFile access, MappedByteBuffer mapped, int rows, int cols, int type) {
+        mFile = file;
+        mAccess = access;
+        mMapped = mapped;
+        mRows = rows;
+        mCols = cols;
+        mType = type;
+        mRowBytes = cols * CvType.ELEM_SIZE(type);
+    }
+
+    /**
+     * Creates a file for an image of the given size and type, replacing any file there, and
+     * maps it. The pixels start out zero.
+     */
+    public static MappedMat create(File file, int rows, int cols, int type) throws IOException {
+        long stride = (long) cols * CvType.ELEM_SIZE(type);
+        long size = MatFile.HEADER_SIZE + rows * stride;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Image is too large to map: " + size + " bytes");
+        }
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            access.setLength(0);
+            access.setLength(size);
+            FileChannel channel = access.getChannel();
+            ByteBuffer header = MatFile.header(rows, cols, type, stride);
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return new MappedMat(file, access, mapped, rows, cols, type);
+        } catch (IOException | RuntimeException e) {
+            access.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Maps an existing MatFile for reading and writing.
+     */
+    public static MappedMat open(File file) throws IOException {
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = access.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Image is too large to map: " + channel.size() + " bytes");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            MatFile.Header header = MatFile.readHeader(mapped, channel.size());
+            if (header.stride != (long) header.cols * CvType.ELEM_SIZE(header.type)) {
+                throw new IOException("Mapped Mat files can't have padded rows");
+            }
+            return new MappedMat(file, access, mapped, header.rows, header.cols, header.type);
+        } catch (IOException | RuntimeException e) {
+            access.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public int rows() {
+        return mRows;
+    }
+
+    public int cols() {
+        return mCols;
+    }
+
+    public int type() {
+        return mType;
+    }
+
+    /**
+     * @return a copy of rows rowStart to rowEnd, exclusive
+     */
+    public Mat readRows(int rowStart, int rowEnd) {
+        Mat band = new Mat(rowEnd - rowStart, mCols, mType);
+        if (!band.empty()) {
+            MatFile.wrap(band.dataAddr(), band.rows() * (long) mRowBytes).put(rows(rowStart, rowEnd));
+        }
+        return band;
+    }
+
+    /**
+     * Copies a band of rows into the image, with its first row at rowStart.
+     *
+     * @param band - rows of the same width and type as the image
+     */
+    public void writeRows(Mat band, int rowStart) {
+        if (band.cols() != mCols || band.type() != mType) {
+            throw new IllegalArgumentException("Band is " + band.cols() + " columns of type " + band.type()
+                    + ", the image " + mCols + " of type " + mType);
+        }
+        ByteBuffer target = rows(rowStart, rowStart + band.rows());
+        if (band.isContinuous()) {
+            target.put(MatFile.wrap(band.dataAddr(), band.rows() * (long) mRowBytes));
+        } else {
+            long step = band.step1() * band.elemSize1();
+            for (int row = 0; row < band.rows(); row++) {
+                target.put(MatFile.wrap(band.dataAddr() + row * step, mRowBytes));
+            }
+        }
+    }
+
+    /**
+     * Writes the changes back to the file.
+     */
+    public void flush() {
+        mMapped.force();
+    }
+
+    /**
+     * Flushes and closes the file. The mapping itself is released once it is garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        mAccess.close();
+    }
+
+    /**
+     * A buffer over the pixels of rows rowStart to rowEnd, exclusive, positioned at the first.
+     */
+    ByteBuffer rows(int rowStart, int rowEnd) {
+        if (rowStart < 0 || rowEnd > mRows || rowStart > rowEnd) {
+            throw new IndexOutOfBoundsException("Rows " + rowStart + " to " + rowEnd + " of " + mRows);
+        }
+        ByteBuffer rows = mMapped.duplicate();
+        rows.limit(MatFile.HEADER_SIZE + rowEnd * mRowBytes).position(MatFile.HEADER_SIZE + rowStart * mRowBytes);
+        return rows;
+    }
+}
@@ -0,0 +1,181 @@
+package com.onemediain.photoscanner;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Raw Mat files: a 64 byte header followed by the pixel rows exactly as they are in memory, so
+ * images can be kept across restarts without the cost and the loss of PNG or JPEG. The header
+ * is little endian:
+ * <pre>
+ *     0  "MATF"
+ *     4  int  version (1)
+ *     8  int  rows
+ *     12 int  cols
+ *     16 int  type, a CvType
+ *     24 long stride, bytes from the start of one row to the next
+ * </pre>
+ * Pixels are written from the Mat's own memory through a FileChannel. Loading maps the file
+ * and copies the rows straight from the mapping into the new Mat. The OpenCV Java wrapper
+ * cannot make a Mat over memory it didn't allocate, so this copy is the one that remains.
+ */
+public class MatFile {
+
+    static final int HEADER_SIZE = 64;
+
+    private static final int MAGIC = 0x4654414d; // "MATF" read little endian
+    private static final int VERSION = 1;
+
+    static {
+        System.loadLibrary("native-lib");
+    }
+
+    private MatFile() {
+    }
+
+    public static void write(Mat mat, File file) throws IOException {
+        long stride = mat.cols() * mat.elemSize();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            writeFully(channel, header(mat.rows(), mat.cols(), mat.type(), stride));
+            if (mat.empty()) {
+                return;
+            }
+            if (mat.isContinuous()) {
+                writeFully(channel, wrap(mat.dataAddr(), mat.rows() * stride));
+            } else {
+                long step = mat.step1() * mat.elemSize1();
+                for (int row = 0; row < mat.rows(); row++) {
+                    writeFully(channel, wrap(mat.dataAddr() + row * step, stride));
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static Mat read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Mat file is too large to map: " + channel.size() + " bytes");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            Header header = readHeader(mapped, channel.size());
+
+            Mat mat = new Mat(header.rows, header.cols, header.type);
+            if (mat.empty()) {
+                return mat;
+            }
+            long rowBytes = header.rowBytes();
+            if (header.stride == rowBytes) {
+                mapped.limit(toIndex(HEADER_SIZE + header.rows * rowBytes)).position(HEADER_SIZE);
+                wrap(mat.dataAddr(), header.rows * rowBytes).put(mapped);
+            } else {
+                for (int row = 0; row < header.rows; row++) {
+                    long start = HEADER_SIZE + row * header.stride;
+                    mapped.limit(toIndex(start + rowBytes)).position(toIndex(start));
+                    wrap(mat.dataAddr() + row * rowBytes, rowBytes).put(mapped);
+                }
+            }
+            return mat;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return an offset into the mapping, which is never larger than Integer.MAX_VALUE
+     */
+    private static int toIndex(long offset) throws IOException {
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException("Mat file offset " + offset + " is out of range");
+        }
+        return (int) offset;
+    }
+
+    static ByteBuffer header(int rows, int cols, int type, long stride) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(cols).putInt(type).putInt(0).putLong(stride);
+        header.clear();
+        return header;
+    }
+
+    /**
+     * Checks the header at the start of a buffer against the size of the file. Negative sizes,
+     * types that aren't CV_8U to CV_64F with 1 to 4 channels and rows shorter than the image
+     * are rejected, all before read allocates anything.
+     */
+    static Header readHeader(ByteBuffer buffer, long fileSize) throws IOException {
+        if (fileSize < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a Mat file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported Mat file version " + buffer.getInt(4));
+        }
+        Header header = new Header(buffer.getInt(8), buffer.getInt(12), buffer.getInt(16), buffer.getLong(24));
+        if (header.rows < 0 || header.cols < 0 || header.stride < 0) {
+            throw new IOException("Mat file has a negative size");
+        }
+        if (header.type < 0 || header.type > CvType.CV_64FC4 || CvType.depth(header.type) > CvType.CV_64F) {
+            throw new IOException("Unsupported Mat file type " + header.type);
+        }
+        if (header.rows > 0 && header.stride < header.rowBytes()) {
+            throw new IOException("Mat file rows are shorter than the image");
+        }
+        // Divided rather than multiplied, so a large stride can't overflow
+        if (header.rows > 0 && header.stride > (fileSize - HEADER_SIZE) / header.rows) {
+            throw new IOException("Mat file is truncated");
+        }
+        return header;
+    }
+
+    /**
+     * A direct buffer over native memory, such as a Mat's pixels. It is only valid while the
+     * memory is.
+     */
+    static ByteBuffer wrap(long address, long capacity) {
+        return nativeWrap(address, capacity);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    static final class Header {
+        final int rows;
+        final int cols;
+        final int type;
+        final long stride;
+
+        Header(int rows, int cols, int type, long stride) {
+            this.rows = rows;
+            this.cols = cols;
+            this.type = type;
+            this.stride = stride;
+        }
+
+        /**
+         * Bytes of pixels in one row, without any padding up to the stride.
+         */
+        long rowBytes() {
+            return (long) cols * CvType.ELEM_SIZE(type);
+        }
+    }
+
+    private static native ByteBuffer nativeWrap(long address, long capacity);
+}
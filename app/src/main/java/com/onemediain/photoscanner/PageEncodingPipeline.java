@@ -0,0 +1,227 @@
+package com.onemediain.photoscanner;
+
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Encodes the pages of a document in the background while the next page is being scanned.
+ * Pages are encoded in parallel on a pool of encoder threads, and a single writer thread takes
+ * the results in the order the pages were added, so the output keeps the page order however
+ * long each page takes. Pages count against a memory budget from the moment they are added
+ * until they are written; adding a page that doesn't fit waits for earlier pages, or is
+ * refused by tryAdd, so a fast scanner can't queue up more pixels than the budget.
+ *
+ * @param <T> - the encoded form of a page
+ */
+public class PageEncodingPipeline<T> {
+
+    /**
+     * Encodes a page. Runs on an encoder thread, several pages at a time.
+     */
+    public interface Encoder<T> {
+        T encode(Mat page) throws IOException;
+    }
+
+    /**
+     * Receives the encoded pages in order. Runs on the writer thread.
+     */
+    public interface Writer<T> {
+        void write(T encoded) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    private final Encoder<T> mEncoder;
+    private final Writer<T> mWriter;
+    private final long mMemoryBudget;
+    private final ExecutorService mEncoders;
+    private final BlockingQueue<Entry<T>> mQueue = new LinkedBlockingQueue<>();
+    private final Thread mWriterThread;
+    private final Entry<T> mEnd = new Entry<>(null, 0);
+
+    private long mPendingBytes;
+    private int mPageCount;
+    private IOException mError;
+
+    /**
+     * @param memoryBudget - bytes of page pixels that may wait to be written at once
+     * @param threads      - number of pages encoded at the same time
+     */
+    public PageEncodingPipeline(Encoder<T> encoder, Writer<T> writer, long memoryBudget, int threads) {
+        mEncoder = encoder;
+        mWriter = writer;
+        mMemoryBudget = memoryBudget;
+        mEncoders = Executors.newFixedThreadPool(threads);
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writePages();
+            }
+        }, "PageEncodingPipeline-writer");
+        mWriterThread.start();
+    }
+
+    /**
+     * Adds a page, waiting while the pages in flight use up the memory budget. The pipeline
+     * takes ownership of the page and releases it once it is encoded.
+     */
+    public void add(Mat page) throws InterruptedException {
+        long bytes = page.total() * page.elemSize();
+        synchronized (this) {
+            while (!fits(bytes)) {
+                wait();
+            }
+            mPendingBytes += bytes;
+        }
+        enqueue(page, bytes);
+    }
+
+    /**
+     * Adds a page if it fits the memory budget right now, otherwise leaves it with the caller.
+     *
+     * @return whether the page was taken
+     */
+    public boolean tryAdd(Mat page) {
+        long bytes = page.total() * page.elemSize();
+        synchronized (this) {
+            if (!fits(bytes)) {
+                return false;
+            }
+            mPendingBytes += bytes;
+        }
+        enqueue(page, bytes);
+        return true;
+    }
+
+    /**
+     * Waits until every page is written and closes the writer.
+     *
+     * @throws IOException - the first error of any encoder or of the writer
+     */
+    public void finish() throws IOException, InterruptedException {
+        mQueue.add(mEnd);
+        mWriterThread.join();
+        mEncoders.shutdown();
+        synchronized (this) {
+            if (mError != null) {
+                throw mError;
+            }
+        }
+    }
+
+    /**
+     * @return the number of pages added so far
+     */
+    public synchronized int getPageCount() {
+        return mPageCount;
+    }
+
+    /**
+     * @return bytes of pages added but not written yet
+     */
+    public synchronized long getPendingBytes() {
+        return mPendingBytes;
+    }
+
+    private boolean fits(long bytes) {
+        // A page larger than the whole budget still goes through on its own
+        return mPendingBytes == 0 || mPendingBytes + bytes <= mMemoryBudget;
+    }
+
+    private void enqueue(final Mat page, long bytes) {
+        Future<T> encoded = mEncoders.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                try {
+                    return mEncoder.encode(page);
+                } finally {
+                    page.release();
+                }
+            }
+        });
+        synchronized (this) {
+            mPageCount++;
+            // Queued under the lock so the order matches the order of the page numbers
+            mQueue.add(new Entry<>(encoded, bytes));
+        }
+    }
+
+    private void writePages() {
+        try {
+            while (true) {
+                Entry<T> entry;
+                try {
+                    entry = mQueue.take();
+                } catch (InterruptedException e) {
+                    fail(new IOException("Interrupted while writing pages", e));
+                    break;
+                }
+                if (entry == mEnd) {
+                    break;
+                }
+                writePage(entry);
+            }
+        } finally {
+            try {
+                mWriter.close();
+            } catch (IOException | RuntimeException e) {
+                fail(e instanceof IOException ? (IOException) e : new IOException("Couldn't close the writer", e));
+            }
+        }
+    }
+
+    /**
+     * Writes one page unless an earlier one failed. Any failure is recorded for finish(), and
+     * the page always leaves the budget, so a failure can't leave add() waiting.
+     */
+    private void writePage(Entry<T> entry) {
+        try {
+            T encoded = entry.page.get();
+            if (!hasFailed()) {
+                mWriter.write(encoded);
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            fail(cause instanceof IOException ? (IOException) cause : new IOException("Couldn't encode a page", cause));
+        } catch (InterruptedException e) {
+            fail(new IOException("Interrupted while writing pages", e));
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(new IOException("Couldn't write a page", e));
+        } finally {
+            synchronized (this) {
+                mPendingBytes -= entry.bytes;
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized boolean hasFailed() {
+        return mError != null;
+    }
+
+    private synchronized void fail(IOException error) {
+        if (mError == null) {
+            mError = error;
+        }
+    }
+
+    private static final class Entry<T> {
+        final Future<T> page;
+        final long bytes;
+
+        Entry(Future<T> page, long bytes) {
+            this.page = page;
+            this.bytes = bytes;
+        }
+    }
+}
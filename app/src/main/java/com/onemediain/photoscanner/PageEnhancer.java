@@ -0,0 +1,147 @@
+package com.onemediain.photoscanner;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * White balance, contrast stretch and gamma for warped pages, applied as one Core.LUT pass.
+ * Statistics are taken from a small copy of the page: for every channel the darkest and
+ * brightest percentiles become black and white, which both stretches the contrast and
+ * neutralises the tint of the paper. The resulting 256 entry tables are cached under a key
+ * the caller gives each page, so enhancing the same page again (e.g. for another export) only
+ * costs the lookup. The tables of the least recently used pages are released beyond MAX_PAGES.
+ */
+public class PageEnhancer {
+
+    private static final int SAMPLE_SIZE = 256;
+    private static final int MAX_PAGES = 8;
+    // Ink covers a few percent of a page and paper most of it, so only the darkest 1% is clipped
+    // to black while the brightest 5%, well inside the paper, becomes white
+    private static final double LOW_PERCENTILE = 0.01;
+    private static final double HIGH_PERCENTILE = 0.95;
+
+    private final double mGamma;
+    private final Map<String, Mat> mTables = new LinkedHashMap<String, Mat>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Mat> eldest) {
+            if (size() > MAX_PAGES) {
+                eldest.getValue().release();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * @param gamma - applied after the stretch; values above 1 darken mid tones such as faint ink
+     */
+    public PageEnhancer(double gamma) {
+        mGamma = gamma;
+    }
+
+    /**
+     * @param pageKey - identifies the page; its tables are built on the first call
+     * @param sample  - the page at any resolution, which the statistics are taken from
+     * @param page    - 8 bit page with one or three channels, such as the full resolution warp
+     * @param dst     - receives the enhanced page, may be page itself
+     */
+    public void enhance(String pageKey, Mat sample, Mat page, Mat dst) {
+        synchronized (mTables) {
+            Mat table = mTables.get(pageKey);
+            if (table == null) {
+                table = buildTable(sample);
+                mTables.put(pageKey, table);
+            }
+            // Under the lock, so the table isn't released while it is applied
+            Core.LUT(page, table, dst);
+        }
+    }
+
+    /**
+     * Releases the tables of a page whose pixels have changed or that is gone.
+     */
+    public void invalidate(String pageKey) {
+        synchronized (mTables) {
+            Mat table = mTables.remove(pageKey);
+            if (table != null) {
+                table.release();
+            }
+        }
+    }
+
+    /**
+     * Releases the tables of every page.
+     */
+    public void release() {
+        synchronized (mTables) {
+            for (Mat table : mTables.values()) {
+                table.release();
+            }
+            mTables.clear();
+        }
+    }
+
+    private Mat buildTable(Mat page) {
+        double scale = Math.min(1.0, (double) SAMPLE_SIZE / Math.max(page.rows(), page.cols()));
+        Mat sample = new Mat();
+        Imgproc.resize(page, sample, new Size(), scale, scale, Imgproc.INTER_AREA);
+
+        int channels = page.channels();
+        byte[] table = new byte[256 * channels];
+        List<Mat> images = new ArrayList<>();
+        images.add(sample);
+        Mat histogram = new Mat();
+        Mat mask = new Mat();
+        MatOfInt histSize = new MatOfInt(256);
+        MatOfFloat ranges = new MatOfFloat(0, 256);
+        for (int c = 0; c < channels; c++) {
+            MatOfInt channel = new MatOfInt(c);
+            Imgproc.calcHist(images, channel, mask, histogram, histSize, ranges);
+            channel.release();
+            float[] counts = new float[256];
+            histogram.get(0, 0, counts);
+
+            int low = percentile(counts, LOW_PERCENTILE);
+            int high = Math.max(percentile(counts, HIGH_PERCENTILE), low + 1);
+            for (int value = 0; value < 256; value++) {
+                double stretched = Math.min(Math.max((double) (value - low) / (high - low), 0), 1);
+                table[value * channels + c] = (byte) Math.round(255 * Math.pow(stretched, mGamma));
+            }
+        }
+        ranges.release();
+        histSize.release();
+        mask.release();
+        histogram.release();
+        sample.release();
+
+        Mat lut = new Mat(1, 256, CvType.CV_8UC(channels));
+        lut.put(0, 0, table);
+        return lut;
+    }
+
+    private static int percentile(float[] counts, double fraction) {
+        double total = 0;
+        for (float count : counts) {
+            total += count;
+        }
+        double target = total * fraction;
+        double sum = 0;
+        for (int value = 0; value < counts.length; value++) {
+            sum += counts[value];
+            if (sum > target) {
+                return value;
+            }
+        }
+        return counts.length - 1;
+    }
+}
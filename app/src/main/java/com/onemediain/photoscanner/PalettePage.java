@@ -0,0 +1,74 @@
+package com.onemediain.photoscanner;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * A page reduced to a small palette: one palette index per pixel, stored row after row, and
+ * the RGB value of every index. Made by PaletteQuantizer and written by IndexedPngWriter.
+ */
+public final class PalettePage {
+
+    private final int mWidth;
+    private final int mHeight;
+    private final byte[] mPalette;
+    private final byte[] mIndices;
+
+    /**
+     * @param palette - RGB triplets, one per colour
+     * @param indices - width * height palette indices
+     */
+    public PalettePage(int width, int height, byte[] palette, byte[] indices) {
+        mWidth = width;
+        mHeight = height;
+        mPalette = palette;
+        mIndices = indices;
+    }
+
+    /**
+     * Expands the page into a CV_8UC3 RGB image.
+     */
+    public Mat toMat() {
+        Mat indices = new Mat(mHeight, mWidth, CvType.CV_8UC1);
+        indices.put(0, 0, mIndices);
+        Mat image = new Mat();
+        Imgproc.cvtColor(indices, image, Imgproc.COLOR_GRAY2RGB);
+        indices.release();
+
+        byte[] table = new byte[256 * 3];
+        System.arraycopy(mPalette, 0, table, 0, mPalette.length);
+        Mat lut = new Mat(1, 256, CvType.CV_8UC3);
+        lut.put(0, 0, table);
+        Core.LUT(image, lut, image);
+        lut.release();
+        return image;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getColorCount() {
+        return mPalette.length / 3;
+    }
+
+    /**
+     * @return RGB triplets, shared with the page
+     */
+    public byte[] getPalette() {
+        return mPalette;
+    }
+
+    /**
+     * @return the palette index of every pixel, shared with the page
+     */
+    public byte[] getIndices() {
+        return mIndices;
+    }
+}
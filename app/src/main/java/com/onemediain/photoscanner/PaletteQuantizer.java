@@ -0,0 +1,136 @@
+package com.onemediain.photoscanner;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.TermCriteria;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reduces a colour page, such as a form or highlighted text, to a palette of a few colours,
+ * which compresses far better than JPEG as an indexed PNG. The palette is found by k-means on
+ * a fixed size random sample of pixels, so clustering costs the same for any page size. The
+ * nearest palette entry is precomputed for a 32 x 32 x 32 grid of RGB values, and the page is
+ * mapped through that table in one pass.
+ */
+public class PaletteQuantizer {
+
+    public static final int MIN_COLORS = 4;
+    public static final int MAX_COLORS = 16;
+
+    private static final int SAMPLES = 4096;
+    private static final int ATTEMPTS = 3;
+    private static final int BAND_ROWS = 64;
+
+    private final int mColors;
+    private final Random mRandom = new Random(0);
+
+    /**
+     * @param colors - palette size, clamped to MIN_COLORS ... MAX_COLORS
+     */
+    public PaletteQuantizer(int colors) {
+        mColors = Math.min(Math.max(colors, MIN_COLORS), MAX_COLORS);
+    }
+
+    /**
+     * @param page - CV_8UC3 RGB image
+     */
+    public PalettePage quantize(final Mat page) {
+        if (page.type() != CvType.CV_8UC3) {
+            throw new IllegalArgumentException("PaletteQuantizer needs a CV_8UC3 image, got " + page);
+        }
+        byte[] palette = palette(page);
+        final byte[] table = nearestTable(palette);
+
+        final int cols = page.cols();
+        final byte[] indices = new byte[page.rows() * cols];
+        List<Runnable> bands = new ArrayList<>();
+        for (int top = 0; top < page.rows(); top += BAND_ROWS) {
+            final int bandTop = top;
+            final int bandBottom = Math.min(top + BAND_ROWS, page.rows());
+            bands.add(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] pixels = new byte[(bandBottom - bandTop) * cols * 3];
+                    Mat band = page.submat(bandTop, bandBottom, 0, cols);
+                    band.get(0, 0, pixels);
+                    band.release();
+                    int offset = bandTop * cols;
+                    for (int i = 0, p = 0; p < pixels.length; i++, p += 3) {
+                        int cell = ((pixels[p] & 0xf8) << 7) | ((pixels[p + 1] & 0xf8) << 2) | ((pixels[p + 2] & 0xf8) >> 3);
+                        indices[offset + i] = table[cell];
+                    }
+                }
+            });
+        }
+        ProcessingPool.runAll(bands);
+
+        return new PalettePage(cols, page.rows(), palette, indices);
+    }
+
+    /**
+     * Clusters a random sample of pixels.
+     *
+     * @return RGB triplets of the cluster centres
+     */
+    private byte[] palette(Mat page) {
+        int samples = (int) Math.min(SAMPLES, page.total());
+        float[] values = new float[samples * 3];
+        byte[] pixel = new byte[3];
+        for (int i = 0; i < samples; i++) {
+            page.get(mRandom.nextInt(page.rows()), mRandom.nextInt(page.cols()), pixel);
+            values[i * 3] = pixel[0] & 0xff;
+            values[i * 3 + 1] = pixel[1] & 0xff;
+            values[i * 3 + 2] = pixel[2] & 0xff;
+        }
+        Mat data = new Mat(samples, 3, CvType.CV_32F);
+        data.put(0, 0, values);
+
+        int colors = Math.min(mColors, samples);
+        Mat labels = new Mat();
+        Mat centers = new Mat();
+        Core.kmeans(data, colors, labels, new TermCriteria(TermCriteria.EPS + TermCriteria.MAX_ITER, 20, 1.0),
+                ATTEMPTS, Core.KMEANS_PP_CENTERS, centers);
+        float[] centerValues = new float[colors * 3];
+        centers.get(0, 0, centerValues);
+        data.release();
+        labels.release();
+        centers.release();
+
+        byte[] palette = new byte[colors * 3];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = (byte) Math.min(Math.max(Math.round(centerValues[i]), 0), 255);
+        }
+        return palette;
+    }
+
+    /**
+     * The nearest palette entry for the centre of every cell of a 32 x 32 x 32 RGB grid.
+     */
+    private static byte[] nearestTable(byte[] palette) {
+        int colors = palette.length / 3;
+        byte[] table = new byte[32 * 32 * 32];
+        for (int cell = 0; cell < table.length; cell++) {
+            int r = ((cell >> 10) << 3) + 4;
+            int g = (((cell >> 5) & 31) << 3) + 4;
+            int b = ((cell & 31) << 3) + 4;
+            int best = 0;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int i = 0; i < colors; i++) {
+                int dr = r - (palette[i * 3] & 0xff);
+                int dg = g - (palette[i * 3 + 1] & 0xff);
+                int db = b - (palette[i * 3 + 2] & 0xff);
+                int distance = dr * dr + dg * dg + db * db;
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = i;
+                }
+            }
+            table[cell] = (byte) best;
+        }
+        return table;
+    }
+}
@@ -0,0 +1,289 @@
+package com.onemediain.photoscanner;
+
+import org.opencv.core.CvType;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a PDF one page at a time. Every page is a single image filling the page, written to
+ * the file as soon as it is added, so memory use does not grow with the number of pages; only
+ * the byte offset of each object is kept for the cross-reference table, which is written with
+ * the page tree by close(). JPEG data is embedded as it is (DCTDecode), without decoding it,
+ * black and white pages as CCITT Group 4 (CCITTFaxDecode), and MappedMat images as deflated
+ * raw pixels (FlateDecode), compressed band by band from the mapping.
+ */
+public class PdfWriter implements Closeable {
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    private static final int CATALOG = 1;
+    private static final int PAGES = 2;
+
+    private final CountingOutputStream mOut;
+    private final List<Long> mOffsets = new ArrayList<>();
+    private final List<Integer> mPages = new ArrayList<>();
+
+    public PdfWriter(File file) throws IOException {
+        this(new FileOutputStream(file));
+    }
+
+    public PdfWriter(OutputStream out) throws IOException {
+        mOut = new CountingOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        // Catalog and page tree are written last, but get the first object numbers
+        mOffsets.add(0L);
+        mOffsets.add(0L);
+        // The binary comment marks the file as binary for transfer tools
+        write("%PDF-1.4\n%\u00e2\u00e3\u00cf\u00d3\n");
+    }
+
+    /**
+     * @return the number of pages added so far
+     */
+    public int getPageCount() {
+        return mPages.size();
+    }
+
+    /**
+     * Adds a page showing a JPEG image. The image size and colour space are read from the
+     * JPEG header.
+     *
+     * @param jpeg - a baseline or progressive JPEG file
+     * @param dpi  - resolution of the image, which sets the page size
+     */
+    public void addJpegPage(byte[] jpeg, double dpi) throws IOException {
+        int[] header = readJpegHeader(jpeg);
+        int width = header[0];
+        int height = header[1];
+        String colorSpace;
+        switch (header[2]) {
+            case 1:
+                colorSpace = "/DeviceGray";
+                break;
+            case 3:
+                colorSpace = "/DeviceRGB";
+                break;
+            case 4:
+                colorSpace = "/DeviceCMYK";
+                break;
+            default:
+                throw new IOException("Unsupported number of JPEG components: " + header[2]);
+        }
+        addImagePage(width, height, dpi,
+                "/ColorSpace " + colorSpace + " /BitsPerComponent 8 /Filter /DCTDecode", jpeg, jpeg.length);
+    }
+
+    /**
+     * Adds a black and white page, compressed with CCITT Group 4.
+     *
+     * @param dpi - resolution of the page, which sets the page size
+     */
+    public void addBilevelPage(BilevelPage page, double dpi) throws IOException {
+        byte[] data = CcittG4Encoder.encode(page);
+        addImagePage(page.getWidth(), page.getHeight(), dpi, String.format(Locale.US,
+                "/ColorSpace /DeviceGray /BitsPerComponent 1 /Filter /CCITTFaxDecode /DecodeParms << /K -1 /Columns %d /Rows %d >>",
+                page.getWidth(), page.getHeight()), data, data.length);
+    }
+
+    /**
+     * Adds a page showing an image whose encoded data is already in a form PDF can decode.
+     *
+     * @param imageEntries - the image dictionary entries besides type, size and length
+     * @param data         - the encoded image, of which the first length bytes are used
+     */
+    void addImagePage(int width, int height, double dpi, String imageEntries, byte[] data, int length)
+            throws IOException {
+        int image = beginObject();
+        write(String.format(Locale.US,
+                "<< /Type /XObject /Subtype /Image /Width %d /Height %d %s /Length %d >>\nstream\n",
+                width, height, imageEntries, length));
+        mOut.write(data, 0, length);
+        write("\nendstream\nendobj\n");
+        addPage(image, width, height, dpi);
+    }
+
+    /**
+     * Adds a page showing an 8 bit gray or RGB image that lives in a MappedMat, deflating it
+     * straight from the mapping a band at a time.
+     *
+     * @param dpi - resolution of the image, which sets the page size
+     */
+    public void addRawPage(MappedMat image, double dpi) throws IOException {
+        String colorSpace;
+        if (image.type() == CvType.CV_8UC1) {
+            colorSpace = "/DeviceGray";
+        } else if (image.type() == CvType.CV_8UC3) {
+            colorSpace = "/DeviceRGB";
+        } else {
+            throw new IOException("Unsupported image type " + CvType.typeToString(image.type()));
+        }
+        int xObject = beginObject();
+        // The compressed length is only known afterwards, so it is an object of its own
+        mOffsets.add(0L);
+        int length = mOffsets.size();
+        write(String.format(Locale.US,
+                "<< /Type /XObject /Subtype /Image /Width %d /Height %d /ColorSpace %s /BitsPerComponent 8 /Filter /FlateDecode /Length %d 0 R >>\nstream\n",
+                image.cols(), image.rows(), colorSpace, length));
+        long start = mOut.getCount();
+        Deflater deflater = new Deflater();
+        try {
+            DeflaterOutputStream deflated = new DeflaterOutputStream(mOut, deflater, 64 * 1024);
+            ByteBuffer pixels = image.rows(0, image.rows());
+            byte[] band = new byte[64 * 1024];
+            while (pixels.hasRemaining()) {
+                int count = Math.min(band.length, pixels.remaining());
+                pixels.get(band, 0, count);
+                deflated.write(band, 0, count);
+            }
+            // Leaves mOut open
+            deflated.finish();
+        } finally {
+            deflater.end();
+        }
+        long streamLength = mOut.getCount() - start;
+        write("\nendstream\nendobj\n");
+        beginObject(length);
+        write(streamLength + "\nendobj\n");
+        addPage(xObject, image.cols(), image.rows(), dpi);
+    }
+
+    /**
+     * Adds a page filled by the image XObject with the given object number.
+     */
+    private void addPage(int image, int width, int height, double dpi) throws IOException {
+        double pageWidth = width * 72.0 / dpi;
+        double pageHeight = height * 72.0 / dpi;
+        String content = String.format(Locale.US, "q %.2f 0 0 %.2f 0 0 cm /Im0 Do Q", pageWidth, pageHeight);
+        int contents = beginObject();
+        write("<< /Length " + content.length() + " >>\nstream\n" + content + "\nendstream\nendobj\n");
+
+        int page = beginObject();
+        write(String.format(Locale.US,
+                "<< /Type /Page /Parent %d 0 R /MediaBox [0 0 %.2f %.2f] /Resources << /XObject << /Im0 %d 0 R >> >> /Contents %d 0 R >>\nendobj\n",
+                PAGES, pageWidth, pageHeight, image, contents));
+        mPages.add(page);
+    }
+
+    /**
+     * Writes the page tree, the cross-reference table and the trailer, and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        StringBuilder kids = new StringBuilder();
+        for (int page : mPages) {
+            kids.append(page).append(" 0 R ");
+        }
+        beginObject(PAGES);
+        write("<< /Type /Pages /Kids [" + kids + "] /Count " + mPages.size() + " >>\nendobj\n");
+        beginObject(CATALOG);
+        write("<< /Type /Catalog /Pages " + PAGES + " 0 R >>\nendobj\n");
+
+        long xref = mOut.getCount();
+        StringBuilder table = new StringBuilder();
+        table.append("xref\n0 ").append(mOffsets.size() + 1).append("\n0000000000 65535 f \n");
+        for (long offset : mOffsets) {
+            table.append(String.format(Locale.US, "%010d 00000 n \n", offset));
+        }
+        write(table.toString());
+        write("trailer\n<< /Size " + (mOffsets.size() + 1) + " /Root " + CATALOG + " 0 R >>\nstartxref\n"
+                + xref + "\n%%EOF\n");
+        mOut.close();
+    }
+
+    private int beginObject() throws IOException {
+        mOffsets.add(0L);
+        int number = mOffsets.size();
+        beginObject(number);
+        return number;
+    }
+
+    private void beginObject(int number) throws IOException {
+        mOffsets.set(number - 1, mOut.getCount());
+        write(number + " 0 obj\n");
+    }
+
+    private void write(String text) throws IOException {
+        mOut.write(text.getBytes(LATIN1));
+    }
+
+    /**
+     * Finds the frame header of a JPEG file.
+     *
+     * @return width, height and number of components
+     */
+    private static int[] readJpegHeader(byte[] jpeg) throws IOException {
+        if (jpeg.length < 4 || (jpeg[0] & 0xff) != 0xff || (jpeg[1] & 0xff) != 0xd8) {
+            throw new IOException("Not a JPEG file");
+        }
+        int position = 2;
+        while (position + 4 <= jpeg.length) {
+            if ((jpeg[position] & 0xff) != 0xff) {
+                throw new IOException("Corrupt JPEG marker at " + position);
+            }
+            int marker = jpeg[position + 1] & 0xff;
+            if (marker == 0xff) {
+                // Fill byte
+                position++;
+                continue;
+            }
+            int length = ((jpeg[position + 2] & 0xff) << 8) | (jpeg[position + 3] & 0xff);
+            // SOF0 to SOF15, except DHT (C4), JPG (C8) and DAC (CC)
+            if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                if (position + 9 >= jpeg.length) {
+                    break;
+                }
+                int height = ((jpeg[position + 5] & 0xff) << 8) | (jpeg[position + 6] & 0xff);
+                int width = ((jpeg[position + 7] & 0xff) << 8) | (jpeg[position + 8] & 0xff);
+                int components = jpeg[position + 9] & 0xff;
+                return new int[]{width, height, components};
+            }
+            position += 2 + length;
+        }
+        throw new IOException("JPEG file has no frame header");
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        private long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            mOut = out;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mOut.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mOut.write(b, off, len);
+            mCount += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+    }
+}
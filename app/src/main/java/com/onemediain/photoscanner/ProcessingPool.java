@@ -0,0 +1,91 @@
+package com.onemediain.photoscanner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared thread pool for splitting image processing work across the available cores. Work
+ * split again from inside the pool, such as a tiled operation whose filter is itself
+ * parallel, runs on the worker that split it.
+ */
+final class ProcessingPool {
+
+    private static final int THREADS = Math.max(Runtime.getRuntime().availableProcessors(), 1);
+    // Set on the pool's own threads
+    private static final ThreadLocal<Boolean> sInPool = new ThreadLocal<>();
+    private static ExecutorService sExecutor;
+
+    private ProcessingPool() {
+    }
+
+    static int getThreadCount() {
+        return THREADS;
+    }
+
+    static synchronized ExecutorService get() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            sInPool.set(Boolean.TRUE);
+                            runnable.run();
+                        }
+                    }, "ProcessingPool-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Runs all tasks on the pool and waits for them to finish. The last task runs on the
+     * calling thread, which is otherwise idle while waiting. Exceptions thrown by a task are
+     * rethrown on the calling thread. Called from a pool thread, the tasks all run on that
+     * thread: waiting for them there could use up every worker and deadlock the pool.
+     */
+    static void runAll(List<? extends Runnable> tasks) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        if (sInPool.get() != null) {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            return;
+        }
+        ExecutorService executor = get();
+        List<Future<?>> futures = new ArrayList<>(tasks.size() - 1);
+        for (int i = 0; i < tasks.size() - 1; i++) {
+            futures.add(executor.submit(tasks.get(i)));
+        }
+        tasks.get(tasks.size() - 1).run();
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for image tiles", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.onemediain.photoscanner;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Local adaptive binarization that gives warped pages a black on white "scanned" look.
+ * The threshold of every pixel depends on the mean and standard deviation of the window
+ * around it. Both are read in constant time from an integral and a squared integral image,
+ * so the cost does not grow with the window size, and the page is processed as horizontal
+ * strips in parallel so that each strip only needs integral images of its own size.
+ */
+public class SauvolaBinarizer {
+
+    public static final int SAUVOLA = 0;
+    public static final int NIBLACK = 1;
+
+    private static final int MIN_TILE_ROWS = 64;
+    private static final double DYNAMIC_RANGE = 128;
+
+    private final int mMethod;
+    private final int mWindow;
+    private final double mK;
+
+    /**
+     * @param method - SAUVOLA or NIBLACK
+     * @param window - odd side length of the window the statistics are taken from
+     * @param k      - weight of the standard deviation, around 0.34 for SAUVOLA and -0.2 for NIBLACK
+     */
+    public SauvolaBinarizer(int method, int window, double k) {
+        mMethod = method;
+        mWindow = window | 1;
+        mK = k;
+    }
+
+    /**
+     * Sauvola with a window that scales with the page, roughly the height of a line of text.
+     */
+    public static SauvolaBinarizer forPage(Mat page) {
+        int window = Math.max(15, Math.min(page.rows(), page.cols()) / 40);
+        return new SauvolaBinarizer(SAUVOLA, window, 0.34);
+    }
+
+    /**
+     * @param src - RGB or gray page
+     * @param dst - receives a CV_8UC1 image with 255 for background and 0 for ink
+     */
+    public void binarize(Mat src, Mat dst) {
+        final Mat gray;
+        if (src.channels() == 1) {
+            gray = src;
+        } else {
+            gray = new Mat();
+            Imgproc.cvtColor(src, gray, Imgproc.COLOR_RGB2GRAY);
+        }
+        dst.create(gray.rows(), gray.cols(), CvType.CV_8UC1);
+
+        int tileRows = Math.max(MIN_TILE_ROWS, gray.rows() / (ProcessingPool.getThreadCount() * 4) + 1);
+        List<Runnable> tiles = new ArrayList<>();
+        for (int top = 0; top < gray.rows(); top += tileRows) {
+            final int tileTop = top;
+            final int tileBottom = Math.min(top + tileRows, gray.rows());
+            final Mat output = dst.submat(tileTop, tileBottom, 0, gray.cols());
+            tiles.add(new Runnable() {
+                @Override
+                public void run() {
+                    binarizeTile(gray, tileTop, tileBottom, output);
+                    output.release();
+                }
+            });
+        }
+        ProcessingPool.runAll(tiles);
+
+        if (gray != src) {
+            gray.release();
+        }
+    }
+
+    private void binarizeTile(Mat gray, int top, int bottom, Mat output) {
+        int radius = mWindow / 2;
+        int rows = bottom - top;
+        int cols = gray.cols();
+        double area = (double) mWindow * mWindow;
+
+        // Pad the strip by the window radius, taking real pixels above and below when there are any
+        int stripTop = Math.max(top - radius, 0);
+        int stripBottom = Math.min(bottom + radius, gray.rows());
+        Mat strip = gray.submat(stripTop, stripBottom, 0, cols);
+        Mat padded = new Mat();
+        Core.copyMakeBorder(strip, padded, radius - (top - stripTop), radius - (stripBottom - bottom),
+                radius, radius, Core.BORDER_REFLECT | Core.BORDER_ISOLATED);
+
+        Mat sum = new Mat();
+        Mat sqsum = new Mat();
+        Imgproc.integral2(padded, sum, sqsum, CvType.CV_32S, CvType.CV_64F);
+
+        // Window sums as I(y + w, x + w) - I(y, x + w) - I(y + w, x) + I(y, x) for the whole strip at once
+        Mat mean = windowSum(sum, rows, cols);
+        mean.convertTo(mean, CvType.CV_32F, 1.0 / area);
+        Mat deviation = windowSum(sqsum, rows, cols);
+        deviation.convertTo(deviation, CvType.CV_32F, 1.0 / area);
+
+        Mat threshold = new Mat();
+        Core.multiply(mean, mean, threshold);
+        Core.subtract(deviation, threshold, deviation);
+        Core.max(deviation, new Scalar(0), deviation);
+        Core.sqrt(deviation, deviation);
+
+        if (mMethod == NIBLACK) {
+            // T = m + k * s
+            Core.scaleAdd(deviation, mK, mean, threshold);
+        } else {
+            // T = m * (1 + k * (s / R - 1))
+            deviation.convertTo(deviation, -1, mK / DYNAMIC_RANGE, 1 - mK);
+            Core.multiply(mean, deviation, threshold);
+        }
+
+        Mat pixels = new Mat();
+        gray.submat(top, bottom, 0, cols).convertTo(pixels, CvType.CV_32F);
+        Core.compare(pixels, threshold, output, Core.CMP_GT);
+
+        strip.release();
+        padded.release();
+        sum.release();
+        sqsum.release();
+        mean.release();
+        deviation.release();
+        threshold.release();
+        pixels.release();
+    }
+
+    private Mat windowSum(Mat integral, int rows, int cols) {
+        Mat windowSum = new Mat();
+        Core.subtract(integral.submat(mWindow, mWindow + rows, mWindow, mWindow + cols),
+                integral.submat(0, rows, mWindow, mWindow + cols), windowSum);
+        Core.subtract(windowSum, integral.submat(mWindow, mWindow + rows, 0, cols), windowSum);
+        Core.add(windowSum, integral.submat(0, rows, 0, cols), windowSum);
+        return windowSum;
+    }
+}
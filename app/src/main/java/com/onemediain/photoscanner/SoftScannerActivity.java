@@ -3,12 +3,10 @@ package com.onemediain.photoscanner;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.Bundle;
-import android.provider.MediaStore;
+import android.os.Environment;
 import android.util.Log;
 import android.view.Display;
 import android.view.Menu;
@@ -16,12 +14,11 @@ import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
 import android.widget.ImageView;
+import android.widget.LinearLayout;
 import android.widget.Toast;
 
 import org.opencv.android.OpenCVLoader;
 import org.opencv.android.Utils;
-import org.opencv.core.Core;
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint;
 import org.opencv.core.MatOfPoint2f;
@@ -29,10 +26,10 @@ import org.opencv.core.Point;
 import org.opencv.core.RotatedRect;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
-import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.utils.Converters;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -45,6 +42,30 @@ public class SoftScannerActivity extends Activity {
 
     private static final String TAG = "SoftScannerActivity";
     private static final int SELECT_PICTURE = 1;
+    private static final double EXPORT_DPI = 150;
+    // Size limit of one page in the archive
+    private static final int EXPORT_PAGE_BYTES = 400 * 1024;
+    private static final int EXPORT_PALETTE_COLORS = 8;
+    // Pixels of added pages that may wait to be encoded and written
+    private static final long DOCUMENT_MEMORY_BUDGET = 64L * 1024 * 1024;
+    private static final int DOCUMENT_ENCODER_THREADS = 2;
+    private static final long DECODED_CACHE_BYTES = 64L * 1024 * 1024;
+    // Rigid scan edges and line segments
+    private static final FilterGraph.Stage RIGID_EDGES = ImageFilter.CANNY.stage(1);
+    private static final FilterGraph.Stage RIGID_LINES = RIGID_EDGES.houghLinesP(180, 60, 10);
+    // Flex scan edges, line segments and outline simplification, relative to its length. The
+    // blur is above FastGaussianBlur.MAX_DIRECT_KERNEL, so it runs as a pyramid cascade
+    private static final int FLEX_BLUR_KERNEL = 15;
+    private static final FilterGraph.Stage FLEX_EDGES = FilterGraph.source().gray().gaussian(FLEX_BLUR_KERNEL).canny(150, 300);
+    private static final int FLEX_HOUGH_THRESHOLD = 200;
+    private static final double FLEX_MIN_LINE_LENGTH = 20;
+    private static final double FLEX_MAX_LINE_GAP = 10;
+    private static final double FLEX_APPROX_EPSILON = 0.02;
+    // Corner cache keys, naming each detector with the parameters its corners depend on
+    private static final String RIGID_CORNERS = "rigid " + RIGID_LINES.getKey();
+    private static final String FLEX_CORNERS = "flex " + FLEX_EDGES.getKey() + " hough=" + FLEX_HOUGH_THRESHOLD
+            + "," + FLEX_MIN_LINE_LENGTH + "," + FLEX_MAX_LINE_GAP + " approx=" + FLEX_APPROX_EPSILON;
+    private static final String MANUAL_CORNERS = "manual";
 
     static {
         if (!OpenCVLoader.initDebug()) {
@@ -56,8 +77,25 @@ public class SoftScannerActivity extends Activity {
 
     Mat sampledImage = null;
     Mat originalImage = null;
+    Mat scannedImage = null;
+    // Corners and inset of the last warp, in sampledImage coordinates, null if not known
+    private List<Point> scannedCorners = null;
+    private double scannedInset = 0;
+    // Numbers the scans, naming their tables in pageEnhancer
+    private int scannedPageId = 0;
+    // Whether Enhance was applied to the scan, which exports then enhance too
+    private boolean pageEnhanced = false;
+    BilevelPage bilevelPage = null;
+    PageEnhancer pageEnhancer = new PageEnhancer(1.2);
+    FilterPreviewStrip previewStrip;
+    ImageImporter imageImporter;
+    DecodedImageCache decodedImageCache;
+    CornerCache cornerCache;
+    PageEncodingPipeline<byte[]> documentPipeline = null;
+    File documentFile = null;
     ArrayList<org.opencv.core.Point> corners = new ArrayList<org.opencv.core.Point>();
-    private String selectedImagePath;
+    // Sampled ContentHash of the loaded photo, null if it isn't known
+    private String imageHash = null;
     private double downSampleRatio = 0;
 
     private static double calculateSubSampleSize(Mat srcImage, int reqWidth, int reqHeight) {
@@ -100,12 +138,45 @@ public class SoftScannerActivity extends Activity {
                 return false;
             }
         });
+
+        LinearLayout strip = findViewById(R.id.FilterStrip);
+        previewStrip = new FilterPreviewStrip(strip, getResources().getDimensionPixelSize(R.dimen.filter_preview_height));
+        previewStrip.setOnFilterSelectedListener(new FilterPreviewStrip.OnFilterSelectedListener() {
+            @Override
+            public void onFilterSelected(ImageFilter filter) {
+                displayImage(filter.apply(sampledImage));
+            }
+        });
+
+        imageImporter = new ImageImporter(getContentResolver());
+        decodedImageCache = new DecodedImageCache(new File(getCacheDir(), "decoded"), DECODED_CACHE_BYTES);
+        cornerCache = new CornerCache(new File(getFilesDir(), "corners.idx"));
+        restoreSession();
+    }
+
+    @Override
+    protected void onStop() {
+        saveSession();
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        previewStrip.release();
+        imageImporter.release();
+        pageEnhancer.release();
+        if (documentPipeline != null) {
+            // Don't lose the pages added so far
+            finishDocument();
+        }
+        super.onDestroy();
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.soft_scanner, menu);
+        menu.findItem(R.id.action_benchmark).setVisible(BuildConfig.DEBUG);
         return true;
     }
 
@@ -113,35 +184,22 @@ public class SoftScannerActivity extends Activity {
         if (resultCode == RESULT_OK) {
             if (requestCode == SELECT_PICTURE) {
                 Uri selectedImageUri = data.getData();
-                selectedImagePath = getPath(selectedImageUri);
-                Log.d(TAG, "selectedImagePath: " + selectedImagePath);
-                loadImage(selectedImagePath);
-                displayImage(sampledImage);
+                Log.d(TAG, "selectedImageUri: " + selectedImageUri);
+                if (selectedImageUri != null && loadImage(selectedImageUri)) {
+                    displayImage(sampledImage);
+                    previewStrip.show(sampledImage);
+                } else {
+                    Context context = getApplicationContext();
+                    CharSequence text = "Couldn't open the image!";
+                    int duration = Toast.LENGTH_SHORT;
+
+                    Toast toast = Toast.makeText(context, text, duration);
+                    toast.show();
+                }
             }
         }
     }
 
-    /**
-     * helper to retrieve the path of an image URI
-     */
-    private String getPath(Uri uri) {
-        // just some safety built in
-        if (uri == null) {
-            return null;
-        }
-        // try to retrieve the image from the media store first
-        // this will only work for images selected from gallery
-        String[] projection = {MediaStore.Images.Media.DATA};
-        Cursor cursor = getContentResolver().query(uri, projection, null, null, null);
-        if (cursor != null) {
-            int column_index = cursor
-                    .getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
-            cursor.moveToFirst();
-            return cursor.getString(column_index);
-        }
-        return uri.getPath();
-    }
-
     private void displayImage(Mat image) {
         // convert to bitmap:
         Bitmap bitMap = Bitmap.createBitmap(image.cols(), image.rows(), Bitmap.Config.RGB_565);
@@ -152,13 +210,12 @@ public class SoftScannerActivity extends Activity {
         iv.setImageBitmap(bitMap);
     }
 
-    private void loadImage(String path) {
-        originalImage = Imgcodecs.imread(path);
-        Mat rgbImage = new Mat();
-        sampledImage = new Mat();
-
-        Imgproc.cvtColor(originalImage, rgbImage, Imgproc.COLOR_BGR2RGB);
-
+    /**
+     * Reads, decodes and turns upright the image at uri, scaled to fit the screen.
+     *
+     * @return false if the image couldn't be read or decoded
+     */
+    private boolean loadImage(Uri uri) {
         Display display = getWindowManager().getDefaultDisplay();
         android.graphics.Point size = new android.graphics.Point();
         display.getSize(size);
@@ -166,33 +223,65 @@ public class SoftScannerActivity extends Activity {
         int width = size.x;
         int height = size.y;
 
-        downSampleRatio = calculateSubSampleSize(rgbImage, width, height);
+        // The last scan can't be warped again from the new photo
+        scannedCorners = null;
+        try {
+            imageImporter.read(uri);
+            imageHash = imageImporter.contentHash();
+            String cacheKey = DecodedImageCache.key(imageImporter.fullContentHash(), width, height);
+            Mat cachedImage = decodedImageCache.get(cacheKey);
+            if (cachedImage != null) {
+                Log.d(TAG, "Decoded image cache hit for " + uri);
+                replaceImages(cachedImage, null);
+                return true;
+            }
 
-        Imgproc.resize(rgbImage, sampledImage, new Size(), downSampleRatio, downSampleRatio, Imgproc.INTER_AREA);
+            int orientation = imageImporter.orientation();
+            Mat decodedImage = imageImporter.decode();
+            Mat rgbImage = new Mat();
+            Mat scaledImage = new Mat();
 
-        try {
-            ExifInterface exif = new ExifInterface(selectedImagePath);
-            int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, 1);
-
-            /*switch (orientation) {
-                case ExifInterface.ORIENTATION_ROTATE_90:
-                    //get the mirrored image
-                    sampledImage = sampledImage.t();
-                    //flip on the y-axis
-                    Core.flip(sampledImage, sampledImage, 1);
-                    break;
-                case ExifInterface.ORIENTATION_ROTATE_270:
-                    //get up side down image
-                    sampledImage = sampledImage.t();
-                    //Flip on the x-axis
-                    Core.flip(sampledImage, sampledImage, 0);
-                    break;
-            }*/
-        } catch (IOException e) {
-            e.printStackTrace();
+            Imgproc.cvtColor(decodedImage, rgbImage, Imgproc.COLOR_BGR2RGB);
+
+            // Fit the upright image to the screen, and turn it upright once it is small
+            if (ExifOrientation.swapsAxes(orientation)) {
+                downSampleRatio = calculateSubSampleSize(rgbImage, height, width);
+            } else {
+                downSampleRatio = calculateSubSampleSize(rgbImage, width, height);
+            }
+
+            Imgproc.resize(rgbImage, scaledImage, new Size(), downSampleRatio, downSampleRatio, Imgproc.INTER_AREA);
+            rgbImage.release();
+            Mat uprightImage = ExifOrientation.apply(scaledImage, orientation);
+            if (uprightImage != scaledImage) {
+                scaledImage.release();
+            }
+            replaceImages(uprightImage, decodedImage);
+            decodedImageCache.put(cacheKey, sampledImage);
+            return true;
+        } catch (IOException | SecurityException e) {
+            // Providers throw SecurityException for URIs we have lost the permission to read
+            Log.e(TAG, "Couldn't load " + uri, e);
+            imageHash = null;
+            return false;
         }
     }
 
+    /**
+     * Releases the images of the last photo and keeps the new ones. Only called once the new
+     * photo has been decoded, so a failed load leaves the last one in place.
+     */
+    private void replaceImages(Mat sampled, Mat original) {
+        if (sampledImage != null) {
+            sampledImage.release();
+        }
+        if (originalImage != null) {
+            originalImage.release();
+        }
+        sampledImage = sampled;
+        originalImage = original;
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // Handle action bar item clicks here. The action bar will
@@ -216,13 +305,11 @@ public class SoftScannerActivity extends Activity {
                 toast.show();
                 return true;
             }
-            Mat binaryImage = new Mat();
-            Imgproc.cvtColor(sampledImage, binaryImage, Imgproc.COLOR_RGB2GRAY);
-            Imgproc.Canny(binaryImage, binaryImage, 80, 100);
-
-            Mat lines = new Mat();
             int threshold = 180;
-            Imgproc.HoughLinesP(binaryImage, lines, 1, Math.PI / 180, threshold);
+            FilterGraph.Stage edges = FilterGraph.source().gray().canny(80, 100);
+            Mat[] results = FilterGraph.run(sampledImage, edges, edges.houghLinesP(threshold, 0, 0));
+            Mat binaryImage = results[0];
+            Mat lines = results[1];
 
             Imgproc.cvtColor(binaryImage, binaryImage, Imgproc.COLOR_GRAY2RGB);
             for (int i = 0; i < lines.cols(); i++) {
@@ -249,8 +336,7 @@ public class SoftScannerActivity extends Activity {
                 toast.show();
                 return true;
             }
-            Mat grayImage = new Mat();
-            Imgproc.cvtColor(sampledImage, grayImage, Imgproc.COLOR_RGB2GRAY);
+            Mat grayImage = FilterGraph.run(sampledImage, FilterGraph.source().gray())[0];
 
             double minDist = 50;
             int thickness = 5;
@@ -280,9 +366,7 @@ public class SoftScannerActivity extends Activity {
                 toast.show();
                 return true;
             }
-            Mat blurredImage = new Mat();
-            Size size = new Size(7, 7);
-            Imgproc.blur(sampledImage, blurredImage, size);
+            Mat blurredImage = ImageFilter.AVERAGE.apply(sampledImage);
 
             displayImage(blurredImage);
             return true;
@@ -296,9 +380,7 @@ public class SoftScannerActivity extends Activity {
                 toast.show();
                 return true;
             }
-            Mat blurredImage = new Mat();
-            Size size = new Size(35, 35);
-            Imgproc.GaussianBlur(sampledImage, blurredImage, size, 0, 0);
+            Mat blurredImage = ImageFilter.GAUSSIAN.apply(sampledImage);
 
             displayImage(blurredImage);
             return true;
@@ -312,9 +394,7 @@ public class SoftScannerActivity extends Activity {
                 toast.show();
                 return true;
             }
-            Mat blurredImage = new Mat();
-            int kernelDim = 5;
-            Imgproc.medianBlur(sampledImage, blurredImage, kernelDim);
+            Mat blurredImage = ImageFilter.MEDIAN.apply(sampledImage);
 
             displayImage(blurredImage);
             return true;
@@ -328,9 +408,7 @@ public class SoftScannerActivity extends Activity {
                 toast.show();
                 return true;
             }
-            Mat blurredImage = new Mat();
-            int kernelDim = 41;
-            Imgproc.bilateralFilter(sampledImage, blurredImage, kernelDim, 150, 450);
+            Mat blurredImage = ImageFilter.BILATERAL.apply(sampledImage);
 
             displayImage(blurredImage);
             return true;
@@ -344,24 +422,7 @@ public class SoftScannerActivity extends Activity {
                 toast.show();
                 return true;
             }
-            Mat blurredImage = new Mat();
-            Size size = new Size(7, 7);
-            Imgproc.GaussianBlur(sampledImage, blurredImage, size, 0, 0);
-
-            Mat gray = new Mat();
-            Imgproc.cvtColor(blurredImage, gray, Imgproc.COLOR_RGB2GRAY);
-
-            Mat xD = new Mat(), yD = new Mat();
-            Mat absXD = new Mat(), absYD = new Mat();
-            int ddepth = CvType.CV_16S;
-            Imgproc.Sobel(gray, xD, ddepth, 1, 0);
-            Imgproc.Sobel(gray, yD, ddepth, 0, 1);
-
-            Core.convertScaleAbs(xD, absXD);
-            Core.convertScaleAbs(yD, absYD);
-
-            Mat edgeImage = new Mat();
-            Core.addWeighted(absXD, 0.5, absYD, 0.5, 0, edgeImage);
+            Mat edgeImage = ImageFilter.SOBEL.apply(sampledImage);
 
             displayImage(edgeImage);
             return true;
@@ -375,11 +436,7 @@ public class SoftScannerActivity extends Activity {
                 toast.show();
                 return true;
             }
-            Mat gray = new Mat();
-            Imgproc.cvtColor(sampledImage, gray, Imgproc.COLOR_RGB2GRAY);
-
-            Mat edgeImage = new Mat();
-            Imgproc.Canny(gray, edgeImage, 100, 200);
+            Mat edgeImage = ImageFilter.CANNY.apply(sampledImage);
 
             displayImage(edgeImage);
             return true;
@@ -406,15 +463,16 @@ public class SoftScannerActivity extends Activity {
                 toast.show();
                 return true;
             }
+            List<Point> cachedCorners = cornerCache.get(imageHash, RIGID_CORNERS, sampledImage.size());
+            if (cachedCorners != null) {
+                Log.d(TAG, "Corner cache hit, skipping rigid detection");
+                warpPage(cachedCorners, 0);
+                return true;
+            }
 
-            Mat gray = new Mat();
-            Imgproc.cvtColor(sampledImage, gray, Imgproc.COLOR_RGB2GRAY);
-            Mat edgeImage = new Mat();
-            Imgproc.Canny(gray, edgeImage, 100, 200);
-
-            Mat lines = new Mat();
-            int threshold = 180;
-            Imgproc.HoughLinesP(edgeImage, lines, 1, Math.PI / 180, threshold, 60, 10);
+            Mat[] results = FilterGraph.run(sampledImage, RIGID_EDGES, RIGID_LINES);
+            Mat edgeImage = results[0];
+            Mat lines = results[1];
 
             boolean[] include = new boolean[lines.cols()];
             double maxTop = edgeImage.rows();
@@ -546,17 +604,10 @@ public class SoftScannerActivity extends Activity {
 //			Core.line(sampledImage, rect_points[j], rect_points[(j+1)%4], new Scalar(0,0,255), 3);
 //			displayImage(sampledImage);
 
-
-            Mat correctedImage = new Mat(sampledImage.rows(), sampledImage.cols(), sampledImage.type());
-            Mat srcPoints = Converters.vector_Point2f_to_Mat(Arrays.asList(rect_points));
-            Mat destPoints = Converters.vector_Point2f_to_Mat(Arrays.asList(new org.opencv.core.Point(0, correctedImage.rows()),
-                    new org.opencv.core.Point(0, 0),
-                    new org.opencv.core.Point(correctedImage.cols(), 0),
-                    new org.opencv.core.Point(correctedImage.cols(), correctedImage.rows())));
-
-            Mat transformation = Imgproc.getPerspectiveTransform(srcPoints, destPoints);
-            Imgproc.warpPerspective(sampledImage, correctedImage, transformation, correctedImage.size());
-            displayImage(correctedImage);
+            // The rectangle's points start at its bottom left corner
+            List<Point> rigidCorners = Arrays.asList(rect_points[1], rect_points[2], rect_points[3], rect_points[0]);
+            cornerCache.put(imageHash, RIGID_CORNERS, rigidCorners, sampledImage.size());
+            warpPage(rigidCorners, 0);
         } else if (id == R.id.action_flexscan) {
 
 
@@ -570,16 +621,18 @@ public class SoftScannerActivity extends Activity {
                 toast.show();
                 return true;
             }
-            Mat gray = new Mat();
-            Imgproc.cvtColor(sampledImage, gray, Imgproc.COLOR_RGBA2GRAY);
-
-            //Imgproc.GaussianBlur(sampledImage, gray, new Size(15, 15), 0);
-
-            Mat edgeImage = new Mat();
-            Imgproc.Canny(gray, edgeImage, 150, 300);
-
+            List<Point> cachedCorners = cornerCache.get(imageHash, FLEX_CORNERS, sampledImage.size());
+            if (cachedCorners != null) {
+                Log.d(TAG, "Corner cache hit, skipping flex detection");
+                for (Point point : cachedCorners) {
+                    Imgproc.circle(sampledImage, point, 10, new Scalar(0, 0, 255), 2);
+                }
+                warpPage(cachedCorners, 30);
+                return true;
+            }
+            int threshold = FLEX_HOUGH_THRESHOLD;
+            Mat edgeImage = FilterGraph.run(sampledImage, FLEX_EDGES)[0];
             Mat lines = new Mat();
-            int threshold = 200;
             Mat hierarchy = new Mat();
             List<MatOfPoint> contours = new ArrayList<>();
 
@@ -616,7 +669,7 @@ public class SoftScannerActivity extends Activity {
 
             //Log.d(TAG,"Final sorted contour is: " + sortedCroppedContours.toString());
 
-            Imgproc.HoughLinesP(edgeImage, lines, 1, Math.PI / 180, threshold, 20, 10);
+            Imgproc.HoughLinesP(edgeImage, lines, 1, Math.PI / 180, threshold, FLEX_MIN_LINE_LENGTH, FLEX_MAX_LINE_GAP);
 
             ArrayList<Point> flexCorners = new ArrayList<>();
 
@@ -659,10 +712,11 @@ public class SoftScannerActivity extends Activity {
             cornersMat.fromList(flexCorners);
             Log.d(TAG, "cornersMat: " + cornersMat);
             MatOfPoint2f approxConrers = new MatOfPoint2f();
-            Imgproc.approxPolyDP(cornersMat, approxConrers, Imgproc.arcLength(cornersMat, true) * 0.02, true);
+            Imgproc.approxPolyDP(cornersMat, approxConrers, Imgproc.arcLength(cornersMat, true) * FLEX_APPROX_EPSILON, true);
 
             Log.i(TAG, "approxConrers: " + approxConrers);
-            if (approxConrers.rows() < 4) {
+            // Only an outline of exactly four corners can be warped onto the page
+            if (approxConrers.rows() != 4) {
                 Context context = getApplicationContext();
                 CharSequence text = "Couldn't detect an object with four corners!";
                 int duration = Toast.LENGTH_LONG;
@@ -692,17 +746,8 @@ public class SoftScannerActivity extends Activity {
                 Imgproc.circle(sampledImage, point, 10, new Scalar(0, 0, 255), 2);
             }
 
-            Mat correctedImage = new Mat(sampledImage.rows(), sampledImage.cols(), sampledImage.type());
-            Mat srcPoints = Converters.vector_Point2f_to_Mat(flexCorners);
-
-            Mat destPoints = Converters.vector_Point2f_to_Mat(Arrays.asList(new org.opencv.core.Point(30, 30),
-                    new org.opencv.core.Point(correctedImage.cols() - 30, 30),
-                    new org.opencv.core.Point(correctedImage.cols() - 30, correctedImage.rows() - 30),
-                    new org.opencv.core.Point(30, correctedImage.rows() - 30)));
-
-            Mat transformation = Imgproc.getPerspectiveTransform(srcPoints, destPoints);
-            Imgproc.warpPerspective(sampledImage, correctedImage, transformation, correctedImage.size());
-            displayImage(correctedImage);
+            cornerCache.put(imageHash, FLEX_CORNERS, flexCorners, sampledImage.size());
+            warpPage(flexCorners, 30);
 
 
         } else if (id == R.id.action_manScan) {
@@ -715,6 +760,15 @@ public class SoftScannerActivity extends Activity {
                 toast.show();
                 return true;
             }
+            if (corners.isEmpty()) {
+                // Reuse the corners picked the last time this photo was scanned
+                List<Point> cachedCorners = cornerCache.get(imageHash, MANUAL_CORNERS, sampledImage.size());
+                if (cachedCorners != null) {
+                    Log.d(TAG, "Corner cache hit, reusing the selected corners");
+                    warpPage(cachedCorners, 0);
+                    return true;
+                }
+            }
             if (corners.size() != 4) {
                 Context context = getApplicationContext();
                 CharSequence text = "You need to select four corners!";
@@ -735,23 +789,497 @@ public class SoftScannerActivity extends Activity {
             centroid.y /= corners.size();
 
             sortCorners(corners, centroid);
-            Mat correctedImage = new Mat(sampledImage.rows(), sampledImage.cols(), sampledImage.type());
-            Mat srcPoints = Converters.vector_Point2f_to_Mat(corners);
+            cornerCache.put(imageHash, MANUAL_CORNERS, corners, sampledImage.size());
+            warpPage(corners, 0);
+        } else if (id == R.id.action_scanlook) {
+            if (scannedImage == null) {
+                Context context = getApplicationContext();
+                CharSequence text = "You need to scan a document first!";
+                int duration = Toast.LENGTH_SHORT;
+
+                Toast toast = Toast.makeText(context, text, duration);
+                toast.show();
+                return true;
+            }
+            // Binarized at full resolution, the page is what gets exported
+            Mat page = warpFullResolution();
+            Mat flatImage = new Mat();
+            IlluminationFlattener.flatten(page, flatImage);
+            page.release();
+
+            Mat binaryImage = new Mat();
+            SauvolaBinarizer.forPage(flatImage).binarize(flatImage, binaryImage);
+            flatImage.release();
+            bilevelPage = BilevelPage.fromBinary(binaryImage);
+
+            Mat shownImage = new Mat();
+            Imgproc.resize(binaryImage, shownImage, scannedImage.size(), 0, 0, Imgproc.INTER_AREA);
+            binaryImage.release();
+            displayImage(shownImage);
+            return true;
+        } else if (id == R.id.action_enhance) {
+            if (scannedImage == null) {
+                Context context = getApplicationContext();
+                CharSequence text = "You need to scan a document first!";
+                int duration = Toast.LENGTH_SHORT;
+
+                Toast toast = Toast.makeText(context, text, duration);
+                toast.show();
+                return true;
+            }
+            Mat enhancedImage = new Mat();
+            pageEnhancer.enhance(scannedPageKey(), scannedImage, scannedImage, enhancedImage);
+            pageEnhanced = true;
+
+            displayImage(enhancedImage);
+            enhancedImage.release();
+            return true;
+        } else if (id == R.id.action_export_pdf) {
+            if (scannedImage == null) {
+                Context context = getApplicationContext();
+                CharSequence text = "You need to scan a document first!";
+                int duration = Toast.LENGTH_SHORT;
 
-            Mat destPoints = Converters.vector_Point2f_to_Mat(Arrays.asList(new org.opencv.core.Point(0, 0),
-                    new org.opencv.core.Point(correctedImage.cols(), 0),
-                    new org.opencv.core.Point(correctedImage.cols(), correctedImage.rows()),
-                    new org.opencv.core.Point(0, correctedImage.rows())));
+                Toast toast = Toast.makeText(context, text, duration);
+                toast.show();
+                return true;
+            }
+            final Mat page = warpFullResolution();
+            if (pageEnhanced) {
+                // The tables come from the scan, only the lookup runs at full resolution
+                pageEnhancer.enhance(scannedPageKey(), scannedImage, page, page);
+            }
+            Imgproc.cvtColor(page, page, Imgproc.COLOR_RGB2BGR);
+            final double dpi = exportDpi(page.cols());
+            export("pdf", new Exporter() {
+                @Override
+                public void write(File file) throws IOException {
+                    try {
+                        exportPdf(page, dpi, file);
+                    } finally {
+                        page.release();
+                    }
+                }
+            });
+            return true;
+        } else if (id == R.id.action_export_text_pdf || id == R.id.action_export_tiff) {
+            if (bilevelPage == null) {
+                Context context = getApplicationContext();
+                CharSequence text = "You need to apply Scan Look first!";
+                int duration = Toast.LENGTH_SHORT;
 
-            Mat transformation = Imgproc.getPerspectiveTransform(srcPoints, destPoints);
-            Imgproc.warpPerspective(sampledImage, correctedImage, transformation, correctedImage.size());
+                Toast toast = Toast.makeText(context, text, duration);
+                toast.show();
+                return true;
+            }
+            final BilevelPage page = bilevelPage;
+            final double dpi = exportDpi(page.getWidth());
+            if (id == R.id.action_export_text_pdf) {
+                export("pdf", new Exporter() {
+                    @Override
+                    public void write(File file) throws IOException {
+                        PdfWriter writer = new PdfWriter(file);
+                        try {
+                            writer.addBilevelPage(page, dpi);
+                        } finally {
+                            writer.close();
+                        }
+                    }
+                });
+            } else {
+                export("tif", new Exporter() {
+                    @Override
+                    public void write(File file) throws IOException {
+                        TiffWriter writer = new TiffWriter(file);
+                        try {
+                            writer.addPage(page, (int) Math.round(dpi));
+                        } finally {
+                            writer.close();
+                        }
+                    }
+                });
+            }
+            return true;
+        } else if (id == R.id.action_export_palette_png) {
+            if (scannedImage == null) {
+                Context context = getApplicationContext();
+                CharSequence text = "You need to scan a document first!";
+                int duration = Toast.LENGTH_SHORT;
+
+                Toast toast = Toast.makeText(context, text, duration);
+                toast.show();
+                return true;
+            }
+            final PalettePage page = new PaletteQuantizer(EXPORT_PALETTE_COLORS).quantize(scannedImage);
+            displayImage(page.toMat());
+            export("png", new Exporter() {
+                @Override
+                public void write(File file) throws IOException {
+                    IndexedPngWriter.write(page, file);
+                }
+            });
+            return true;
+        } else if (id == R.id.action_add_page) {
+            if (scannedImage == null) {
+                Context context = getApplicationContext();
+                CharSequence text = "You need to scan a document first!";
+                int duration = Toast.LENGTH_SHORT;
 
-            displayImage(correctedImage);
+                Toast toast = Toast.makeText(context, text, duration);
+                toast.show();
+                return true;
+            }
+            if (documentPipeline == null) {
+                try {
+                    startDocument();
+                } catch (IOException e) {
+                    Log.e(TAG, "Couldn't start a document", e);
+                    Toast.makeText(getApplicationContext(), "Couldn't create the PDF: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                    return true;
+                }
+            }
+            Mat page = scannedImage.clone();
+            if (pageEnhanced) {
+                pageEnhancer.enhance(scannedPageKey(), scannedImage, page, page);
+            }
+            CharSequence text;
+            if (documentPipeline.tryAdd(page)) {
+                text = "Page " + documentPipeline.getPageCount() + " added";
+            } else {
+                page.release();
+                text = "Still saving earlier pages, try again in a moment";
+            }
+            Toast.makeText(getApplicationContext(), text, Toast.LENGTH_SHORT).show();
+            return true;
+        } else if (id == R.id.action_finish_document) {
+            if (documentPipeline == null) {
+                Context context = getApplicationContext();
+                CharSequence text = "You need to add a page first!";
+                int duration = Toast.LENGTH_SHORT;
+
+                Toast toast = Toast.makeText(context, text, duration);
+                toast.show();
+                return true;
+            }
+            finishDocument();
+            return true;
+        } else if (id == R.id.action_benchmark) {
+            if (sampledImage == null) {
+                Context context = getApplicationContext();
+                CharSequence text = "You need to load an image first!";
+                int duration = Toast.LENGTH_SHORT;
+
+                Toast toast = Toast.makeText(context, text, duration);
+                toast.show();
+                return true;
+            }
+            final Mat image = sampledImage.clone();
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final String result = FilterBenchmark.runAll(image);
+                    image.release();
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(getApplicationContext(), result, Toast.LENGTH_LONG).show();
+                        }
+                    });
+                }
+            }).start();
+            return true;
         }
 
         return super.onOptionsItemSelected(item);
     }
 
+    private interface Exporter {
+        void write(File file) throws IOException;
+    }
+
+    /**
+     * Writes a new file in the app's documents directory on a background thread and reports
+     * where it went.
+     *
+     * @param extension - file name extension without the dot
+     */
+    private void export(String extension, final Exporter exporter) {
+        final File file = new File(getExternalFilesDir(Environment.DIRECTORY_DOCUMENTS),
+                "scan-" + System.currentTimeMillis() + "." + extension);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String result;
+                try {
+                    exporter.write(file);
+                    result = "Saved " + file.getPath();
+                } catch (IOException | RuntimeException e) {
+                    // Encoders report bad input with CvException and IllegalArgumentException
+                    Log.e(TAG, "Export failed", e);
+                    result = "Couldn't save " + file.getName() + ": " + e.getMessage();
+                }
+
+                final String message = result;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(getApplicationContext(), message, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }).start();
+    }
+
+    private File sessionFile(String name) {
+        return new File(new File(getFilesDir(), "session"), name + ".mat");
+    }
+
+    /**
+     * Keeps the loaded and the scanned image as raw Mat files, so they are back after the app
+     * has been restarted. Written from copies on a background thread.
+     */
+    private void saveSession() {
+        final Mat sampled = sampledImage != null ? sampledImage.clone() : null;
+        final Mat scanned = scannedImage != null ? scannedImage.clone() : null;
+        final File sampledFile = sessionFile("sampled");
+        final File scannedFile = sessionFile("scanned");
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sampledFile.getParentFile().mkdirs();
+                save(sampled, sampledFile);
+                save(scanned, scannedFile);
+            }
+
+            private void save(Mat image, File file) {
+                if (image == null) {
+                    file.delete();
+                    return;
+                }
+                // Renamed into place so a restore never sees half a file
+                File partial = new File(file.getPath() + ".partial");
+                try {
+                    MatFile.write(image, partial);
+                    if (!partial.renameTo(file)) {
+                        throw new IOException("Couldn't rename " + partial);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Couldn't save " + file, e);
+                    partial.delete();
+                }
+                image.release();
+            }
+        }).start();
+    }
+
+    /**
+     * Warps the page with the given corners, ordered top left, top right, bottom right, bottom
+     * left, onto the whole image less a margin of inset pixels, and shows it as the scan.
+     */
+    private void warpPage(List<Point> pageCorners, double inset) {
+        Mat correctedImage = new Mat(sampledImage.rows(), sampledImage.cols(), sampledImage.type());
+        Mat srcPoints = Converters.vector_Point2f_to_Mat(pageCorners);
+
+        Mat destPoints = Converters.vector_Point2f_to_Mat(Arrays.asList(new Point(inset, inset),
+                new Point(correctedImage.cols() - inset, inset),
+                new Point(correctedImage.cols() - inset, correctedImage.rows() - inset),
+                new Point(inset, correctedImage.rows() - inset)));
+
+        Mat transformation = Imgproc.getPerspectiveTransform(srcPoints, destPoints);
+        Imgproc.warpPerspective(sampledImage, correctedImage, transformation, correctedImage.size());
+        scannedImage = correctedImage;
+        pageEnhancer.invalidate(scannedPageKey());
+        scannedPageId++;
+        pageEnhanced = false;
+        scannedCorners = new ArrayList<>(pageCorners);
+        scannedInset = inset;
+        bilevelPage = null;
+        displayImage(correctedImage);
+    }
+
+    /**
+     * Warps the last scanned page again from the full resolution photo, with the corners of the
+     * scan. When the photo isn't available, e.g. after the session was restored, it falls back
+     * to a copy of the scan.
+     *
+     * @return the RGB page, owned by the caller
+     */
+    private Mat warpFullResolution() {
+        Mat photo = scannedCorners != null ? uprightPhoto() : null;
+        if (photo == null) {
+            return scannedImage.clone();
+        }
+        double scaleX = (double) photo.cols() / sampledImage.cols();
+        double scaleY = (double) photo.rows() / sampledImage.rows();
+        List<Point> srcCorners = new ArrayList<>();
+        for (Point point : scannedCorners) {
+            srcCorners.add(new Point(point.x * scaleX, point.y * scaleY));
+        }
+        double width = scannedImage.cols() * scaleX;
+        double height = scannedImage.rows() * scaleY;
+        double insetX = scannedInset * scaleX;
+        double insetY = scannedInset * scaleY;
+        Mat srcPoints = Converters.vector_Point2f_to_Mat(srcCorners);
+        Mat destPoints = Converters.vector_Point2f_to_Mat(Arrays.asList(new Point(insetX, insetY),
+                new Point(width - insetX, insetY),
+                new Point(width - insetX, height - insetY),
+                new Point(insetX, height - insetY)));
+
+        Mat transformation = Imgproc.getPerspectiveTransform(srcPoints, destPoints);
+        Mat page = new Mat();
+        Imgproc.warpPerspective(photo, page, transformation, new Size(Math.round(width), Math.round(height)));
+        transformation.release();
+        srcPoints.release();
+        destPoints.release();
+        photo.release();
+        return page;
+    }
+
+    /**
+     * @return the loaded photo at full resolution, RGB and upright, owned by the caller; or null
+     * if it can't be decoded again
+     */
+    private Mat uprightPhoto() {
+        Mat decoded = originalImage;
+        int orientation;
+        try {
+            // The importer still holds the photo unless loading a later one failed
+            if (imageHash == null || !imageHash.equals(imageImporter.contentHash())) {
+                return null;
+            }
+            if (decoded == null) {
+                decoded = imageImporter.decode();
+            }
+            orientation = imageImporter.orientation();
+        } catch (IOException | IllegalStateException e) {
+            Log.e(TAG, "Couldn't decode the photo again", e);
+            return null;
+        }
+        Mat upright = ExifOrientation.apply(decoded, orientation);
+        Mat photo = new Mat();
+        Imgproc.cvtColor(upright, photo, Imgproc.COLOR_BGR2RGB);
+        if (upright != decoded) {
+            upright.release();
+        }
+        if (decoded != originalImage) {
+            decoded.release();
+        }
+        return photo;
+    }
+
+    /**
+     * @return the key of the tables of the current scan in pageEnhancer
+     */
+    private String scannedPageKey() {
+        return "page " + scannedPageId;
+    }
+
+    /**
+     * @return the resolution that gives a page of this width the physical size of the scan at
+     * EXPORT_DPI, so full resolution pages aren't exported larger
+     */
+    private double exportDpi(int width) {
+        return EXPORT_DPI * width / scannedImage.cols();
+    }
+
+    private void restoreSession() {
+        File sampledFile = sessionFile("sampled");
+        File scannedFile = sessionFile("scanned");
+        try {
+            if (sampledFile.exists()) {
+                sampledImage = MatFile.read(sampledFile);
+                displayImage(sampledImage);
+                previewStrip.show(sampledImage);
+            }
+            if (scannedFile.exists()) {
+                scannedImage = MatFile.read(scannedFile);
+            }
+        } catch (IOException | RuntimeException e) {
+            // A damaged session would fail the same way on every start
+            Log.e(TAG, "Couldn't restore the last session, discarding it", e);
+            sampledFile.delete();
+            scannedFile.delete();
+        }
+    }
+
+    /**
+     * Starts a multi-page PDF whose pages are encoded and written in the background while the
+     * next page is scanned.
+     */
+    private void startDocument() throws IOException {
+        documentFile = new File(getExternalFilesDir(Environment.DIRECTORY_DOCUMENTS),
+                "scan-" + System.currentTimeMillis() + ".pdf");
+        final PdfWriter writer = new PdfWriter(documentFile);
+        documentPipeline = new PageEncodingPipeline<>(new PageEncodingPipeline.Encoder<byte[]>() {
+            @Override
+            public byte[] encode(Mat page) {
+                Mat bgr = new Mat();
+                Imgproc.cvtColor(page, bgr, Imgproc.COLOR_RGB2BGR);
+                byte[] jpeg = new TargetSizeJpegEncoder(EXPORT_PAGE_BYTES).encode(bgr).getJpeg();
+                bgr.release();
+                return jpeg;
+            }
+        }, new PageEncodingPipeline.Writer<byte[]>() {
+            @Override
+            public void write(byte[] jpeg) throws IOException {
+                writer.addJpegPage(jpeg, EXPORT_DPI);
+            }
+
+            @Override
+            public void close() throws IOException {
+                writer.close();
+            }
+        }, DOCUMENT_MEMORY_BUDGET, DOCUMENT_ENCODER_THREADS);
+    }
+
+    /**
+     * Waits for the pages of the current document in the background and reports the result.
+     */
+    private void finishDocument() {
+        final PageEncodingPipeline<byte[]> pipeline = documentPipeline;
+        final File file = documentFile;
+        documentPipeline = null;
+        documentFile = null;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String result;
+                try {
+                    pipeline.finish();
+                    result = "Saved " + pipeline.getPageCount() + " pages to " + file.getPath();
+                } catch (IOException e) {
+                    Log.e(TAG, "Document export failed", e);
+                    result = "Couldn't save " + file.getName() + ": " + e.getMessage();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    result = "Couldn't save " + file.getName();
+                }
+
+                final String message = result;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(getApplicationContext(), message, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }).start();
+    }
+
+    /**
+     * Writes a BGR page to a one page PDF, embedding it as the best JPEG within the page size
+     * limit.
+     */
+    private static void exportPdf(Mat page, double dpi, File file) throws IOException {
+        byte[] jpeg = new TargetSizeJpegEncoder(EXPORT_PAGE_BYTES).encode(page).getJpeg();
+        PdfWriter writer = new PdfWriter(file);
+        try {
+            writer.addJpegPage(jpeg, dpi);
+        } finally {
+            writer.close();
+        }
+    }
+
     private Point getLinesIntersection(double[] firstLine, double[] secondLine) {
         Log.d(TAG, "getLinesIntersection called");
         double FX1 = firstLine[0], FY1 = firstLine[1], FX2 = firstLine[2], FY2 = firstLine[3];
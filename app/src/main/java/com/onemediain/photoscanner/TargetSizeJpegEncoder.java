@@ -0,0 +1,249 @@
+package com.onemediain.photoscanner;
+
+import android.util.Log;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Encodes JPEGs that fit a byte budget with at most two full size encodes. The size curve over
+ * quality is first measured on a sample of the image: a mosaic of full resolution tiles taken
+ * from a grid across it, so it has the image's detail at a fraction of its pixels. Only the
+ * entropy coded data grows with the pixel count; the headers and tables are the same size at
+ * any image size, so they are taken off before scaling the sample up and added back once.
+ * Scaled up to the full pixel count the curve gives a starting quality; the first full encode
+ * then shows how far off the sample was, and the curve corrected by that factor gives the
+ * second quality.
+ */
+public class TargetSizeJpegEncoder {
+
+    private static final String TAG = "TargetSizeJpegEncoder";
+    private static final int[] SAMPLE_QUALITIES = {10, 25, 40, 55, 70, 80, 90, 97};
+    private static final int MIN_QUALITY = 5;
+    private static final int MAX_QUALITY = 100;
+    private static final int TILE = 64;
+    private static final int GRID = 4;
+    // Aim a little under the budget so a small misestimate still fits
+    private static final double TARGET_MARGIN = 0.95;
+    // A first encode this close under the budget is not worth a second one
+    private static final double GOOD_ENOUGH = 0.85;
+
+    private final int mTargetBytes;
+
+    public TargetSizeJpegEncoder(int targetBytes) {
+        mTargetBytes = targetBytes;
+    }
+
+    /**
+     * @param image - BGR or gray image, as for Imgcodecs.imencode
+     * @return the largest attempt that fits the budget, or the smallest one if none does
+     */
+    public Result encode(Mat image) {
+        Result result = new Result(mTargetBytes);
+
+        Mat sample = sample(image);
+        double pixelRatio = (double) image.total() / sample.total();
+        double[] headers = new double[SAMPLE_QUALITIES.length];
+        double[] predicted = new double[SAMPLE_QUALITIES.length];
+        for (int i = 0; i < SAMPLE_QUALITIES.length; i++) {
+            byte[] encoded = encode(sample, SAMPLE_QUALITIES[i]);
+            headers[i] = headerBytes(encoded);
+            predicted[i] = headers[i] + (encoded.length - headers[i]) * pixelRatio;
+            result.mAttempts.add(new Attempt(SAMPLE_QUALITIES[i], (int) predicted[i], false));
+        }
+        sample.release();
+
+        int quality = qualityFor(predicted, mTargetBytes * TARGET_MARGIN);
+        byte[] jpeg = encode(image, quality);
+        result.add(new Attempt(quality, jpeg.length, true), jpeg);
+
+        if (jpeg.length > mTargetBytes || jpeg.length < mTargetBytes * GOOD_ENOUGH) {
+            double header = headerBytes(jpeg);
+            double correction = (jpeg.length - header) / Math.max(sizeAt(predicted, quality) - header, 1);
+            for (int i = 0; i < predicted.length; i++) {
+                predicted[i] = headers[i] + (predicted[i] - headers[i]) * correction;
+            }
+            int corrected = qualityFor(predicted, mTargetBytes * TARGET_MARGIN);
+            if (corrected != quality) {
+                jpeg = encode(image, corrected);
+                result.add(new Attempt(corrected, jpeg.length, true), jpeg);
+            }
+        }
+
+        Log.i(TAG, result.toString());
+        return result;
+    }
+
+    /**
+     * Copies tiles from a GRID x GRID grid across the image into one mosaic. Tiles are a
+     * multiple of the 8 pixel JPEG block, so their borders don't add blocks of their own.
+     */
+    private static Mat sample(Mat image) {
+        int tilesX = Math.min(GRID, image.cols() / TILE);
+        int tilesY = Math.min(GRID, image.rows() / TILE);
+        if (tilesX < 2 || tilesY < 2) {
+            return image.clone();
+        }
+        Mat mosaic = new Mat(tilesY * TILE, tilesX * TILE, image.type());
+        for (int ty = 0; ty < tilesY; ty++) {
+            int y = (image.rows() - TILE) * ty / (tilesY - 1);
+            for (int tx = 0; tx < tilesX; tx++) {
+                int x = (image.cols() - TILE) * tx / (tilesX - 1);
+                Mat tile = image.submat(y, y + TILE, x, x + TILE);
+                Mat target = mosaic.submat(ty * TILE, (ty + 1) * TILE, tx * TILE, (tx + 1) * TILE);
+                tile.copyTo(target);
+                tile.release();
+                target.release();
+            }
+        }
+        return mosaic;
+    }
+
+    /**
+     * Interpolates the quality whose size is the target, with sizes interpolated on a log
+     * scale as they grow roughly exponentially with quality.
+     */
+    private static int qualityFor(double[] sizes, double target) {
+        if (target <= sizes[0]) {
+            return MIN_QUALITY;
+        }
+        for (int i = 1; i < sizes.length; i++) {
+            if (target <= sizes[i]) {
+                double t = Math.log(target / sizes[i - 1]) / Math.log(sizes[i] / sizes[i - 1]);
+                return (int) Math.floor(SAMPLE_QUALITIES[i - 1] + t * (SAMPLE_QUALITIES[i] - SAMPLE_QUALITIES[i - 1]));
+            }
+        }
+        return MAX_QUALITY;
+    }
+
+    private static double sizeAt(double[] sizes, int quality) {
+        if (quality <= SAMPLE_QUALITIES[0]) {
+            return sizes[0];
+        }
+        for (int i = 1; i < sizes.length; i++) {
+            if (quality <= SAMPLE_QUALITIES[i]) {
+                double t = (double) (quality - SAMPLE_QUALITIES[i - 1]) / (SAMPLE_QUALITIES[i] - SAMPLE_QUALITIES[i - 1]);
+                return sizes[i - 1] * Math.pow(sizes[i] / sizes[i - 1], t);
+            }
+        }
+        return sizes[sizes.length - 1];
+    }
+
+    /**
+     * @return the bytes of a JPEG that don't depend on the number of pixels: everything up to
+     * the end of the start of scan header, and the end of image marker
+     */
+    static int headerBytes(byte[] jpeg) {
+        int position = 2;
+        while (position + 4 <= jpeg.length && (jpeg[position] & 0xff) == 0xff) {
+            int marker = jpeg[position + 1] & 0xff;
+            int length = (jpeg[position + 2] & 0xff) << 8 | (jpeg[position + 3] & 0xff);
+            position += 2 + length;
+            if (marker == 0xda) {
+                return Math.min(position + 2, jpeg.length);
+            }
+        }
+        // Not a JPEG we can parse, so treat all of it as image data
+        return 0;
+    }
+
+    private static byte[] encode(Mat image, int quality) {
+        MatOfByte buffer = new MatOfByte();
+        Imgcodecs.imencode(".jpg", image, buffer, new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, quality));
+        byte[] jpeg = buffer.toArray();
+        buffer.release();
+        return jpeg;
+    }
+
+    /**
+     * One size measurement, either predicted from the sample or of a full encode.
+     */
+    public static final class Attempt {
+        private final int mQuality;
+        private final int mBytes;
+        private final boolean mFullSize;
+
+        Attempt(int quality, int bytes, boolean fullSize) {
+            mQuality = quality;
+            mBytes = bytes;
+            mFullSize = fullSize;
+        }
+
+        public int getQuality() {
+            return mQuality;
+        }
+
+        public int getBytes() {
+            return mBytes;
+        }
+
+        public boolean isFullSize() {
+            return mFullSize;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "q%d %s %d bytes", mQuality, mFullSize ? "encoded" : "predicted", mBytes);
+        }
+    }
+
+    public static final class Result {
+        private final int mTargetBytes;
+        private final List<Attempt> mAttempts = new ArrayList<>();
+        private byte[] mJpeg;
+        private int mQuality;
+
+        Result(int targetBytes) {
+            mTargetBytes = targetBytes;
+        }
+
+        /**
+         * Keeps the encode if it fits better than the one kept so far.
+         */
+        void add(Attempt attempt, byte[] jpeg) {
+            mAttempts.add(attempt);
+            boolean fits = jpeg.length <= mTargetBytes;
+            boolean keptFits = mJpeg != null && mJpeg.length <= mTargetBytes;
+            if (mJpeg == null
+                    || (fits && (!keptFits || jpeg.length > mJpeg.length))
+                    || (!fits && !keptFits && jpeg.length < mJpeg.length)) {
+                mJpeg = jpeg;
+                mQuality = attempt.getQuality();
+            }
+        }
+
+        public byte[] getJpeg() {
+            return mJpeg;
+        }
+
+        public int getQuality() {
+            return mQuality;
+        }
+
+        /**
+         * @return the sample predictions followed by the full size encodes
+         */
+        public List<Attempt> getAttempts() {
+            return mAttempts;
+        }
+
+        /**
+         * @return size of the chosen encode over the target; at most 1 when it fits
+         */
+        public double getRatio() {
+            return (double) mJpeg.length / mTargetBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d bytes at q%d for a target of %d (%.2f): %s",
+                    mJpeg.length, mQuality, mTargetBytes, getRatio(), mAttempts);
+        }
+    }
+}
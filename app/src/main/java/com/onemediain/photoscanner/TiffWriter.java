@@ -0,0 +1,88 @@
+package com.onemediain.photoscanner;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes black and white pages to a multi-page TIFF, compressed with CCITT Group 4. Pages are
+ * written as they are added; each directory is linked from the previous one in place.
+ */
+public class TiffWriter implements Closeable {
+
+    private static final short TYPE_SHORT = 3;
+    private static final short TYPE_LONG = 4;
+    private static final short TYPE_RATIONAL = 5;
+    private static final int ENTRIES = 13;
+
+    private final RandomAccessFile mFile;
+    // Where the offset of the next directory goes
+    private long mNextDirectoryField = 4;
+
+    public TiffWriter(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(0);
+        mFile.write(header.array());
+    }
+
+    /**
+     * @param dpi - resolution of the page, stored for viewers and printing
+     */
+    public void addPage(BilevelPage page, int dpi) throws IOException {
+        byte[] strip = CcittG4Encoder.encode(page);
+        long stripOffset = mFile.length();
+        mFile.seek(stripOffset);
+        mFile.write(strip);
+        if ((mFile.length() & 1) != 0) {
+            // Directories start on a word boundary
+            mFile.write(0);
+        }
+
+        long directory = mFile.length();
+        long resolution = directory + 2 + ENTRIES * 12 + 4;
+        ByteBuffer ifd = ByteBuffer.allocate(2 + ENTRIES * 12 + 4 + 16).order(ByteOrder.LITTLE_ENDIAN);
+        ifd.putShort((short) ENTRIES);
+        entry(ifd, 256, TYPE_LONG, page.getWidth());          // ImageWidth
+        entry(ifd, 257, TYPE_LONG, page.getHeight());         // ImageLength
+        entry(ifd, 258, TYPE_SHORT, 1);                       // BitsPerSample
+        entry(ifd, 259, TYPE_SHORT, 4);                       // Compression: CCITT T.6
+        entry(ifd, 262, TYPE_SHORT, 0);                       // PhotometricInterpretation: WhiteIsZero
+        entry(ifd, 273, TYPE_LONG, (int) stripOffset);        // StripOffsets
+        entry(ifd, 277, TYPE_SHORT, 1);                       // SamplesPerPixel
+        entry(ifd, 278, TYPE_LONG, page.getHeight());         // RowsPerStrip
+        entry(ifd, 279, TYPE_LONG, strip.length);             // StripByteCounts
+        entry(ifd, 282, TYPE_RATIONAL, (int) resolution);     // XResolution
+        entry(ifd, 283, TYPE_RATIONAL, (int) resolution + 8); // YResolution
+        entry(ifd, 293, TYPE_LONG, 0);                        // T6Options
+        entry(ifd, 296, TYPE_SHORT, 2);                       // ResolutionUnit: inch
+        ifd.putInt(0);
+        ifd.putInt(dpi).putInt(1);
+        ifd.putInt(dpi).putInt(1);
+        mFile.write(ifd.array());
+
+        ByteBuffer link = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        link.putInt((int) directory);
+        mFile.seek(mNextDirectoryField);
+        mFile.write(link.array());
+        mNextDirectoryField = directory + 2 + ENTRIES * 12;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    private static void entry(ByteBuffer ifd, int tag, short type, int value) {
+        ifd.putShort((short) tag).putShort(type).putInt(1);
+        if (type == TYPE_SHORT) {
+            ifd.putShort((short) value).putShort((short) 0);
+        } else {
+            ifd.putInt(value);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.onemediain.photoscanner;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a neighbourhood operation such as blur, GaussianBlur, medianBlur, bilateralFilter,
+ * Sobel or Canny on horizontal tiles of an image in parallel. Every tile is handed to the
+ * operation together with a halo of extra rows above and below it, as a submat of the
+ * source, so pixels near the tile border see the same neighbourhood as in a single call over
+ * the whole image. Only the rows of the tile itself are copied into the output, so the tiles
+ * join without seams. Operations with state that spans the whole image, like the edge
+ * tracking in Canny, only match the single call as far as the halo reaches. Operations may be
+ * parallel themselves; their work runs on the tile's own worker, see ProcessingPool.runAll.
+ */
+public class TileExecutor {
+
+    /**
+     * An operation that reads src and writes a result of the same size into dst.
+     */
+    public interface TileOperation {
+        void apply(Mat src, Mat dst);
+    }
+
+    private static final int MIN_TILE_ROWS = 32;
+    // Size limit of one tile of a MappedMat, whose whole image may not fit in memory
+    private static final int MAX_MAPPED_TILE_BYTES = 4 * 1024 * 1024;
+
+    private final int mTiles;
+
+    /**
+     * @param tiles - how many tiles to cut the image into
+     */
+    public TileExecutor(int tiles) {
+        mTiles = Math.max(tiles, 1);
+    }
+
+    /**
+     * An executor with enough tiles to keep every core of the ProcessingPool busy.
+     */
+    public static TileExecutor forAllCores() {
+        return new TileExecutor(ProcessingPool.getThreadCount() * 2);
+    }
+
+    /**
+     * The halo a square kernel of the given size needs.
+     */
+    public static int haloForKernel(int ksize) {
+        return ksize / 2;
+    }
+
+    /**
+     * @param src       - the image to process
+     * @param dst       - receives the result; its type is whatever the operation produces
+     * @param halo      - rows of context the operation needs on each side of a pixel
+     * @param operation - the operation to run on each tile
+     */
+    public void run(final Mat src, final Mat dst, final int halo, final TileOperation operation) {
+        final int rows = src.rows();
+        final int cols = src.cols();
+        int tileRows = Math.max((rows + mTiles - 1) / mTiles, MIN_TILE_ROWS);
+        if (tileRows >= rows) {
+            operation.apply(src, dst);
+            return;
+        }
+
+        final Mat input = dst == src ? src.clone() : src;
+        final Object dstLock = new Object();
+        final boolean[] dstCreated = {false};
+        List<Runnable> tiles = new ArrayList<>();
+        for (int top = 0; top < rows; top += tileRows) {
+            final int tileTop = top;
+            final int tileBottom = Math.min(top + tileRows, rows);
+            tiles.add(new Runnable() {
+                @Override
+                public void run() {
+                    int haloTop = Math.min(halo, tileTop);
+                    int haloBottom = Math.min(halo, rows - tileBottom);
+                    Mat tileSrc = input.submat(tileTop - haloTop, tileBottom + haloBottom, 0, cols);
+                    Mat tileDst = new Mat();
+                    operation.apply(tileSrc, tileDst);
+
+                    // The output type is only known once the operation has run on a tile
+                    synchronized (dstLock) {
+                        if (!dstCreated[0]) {
+                            dst.create(rows, cols, tileDst.type());
+                            dstCreated[0] = true;
+                        }
+                    }
+                    Mat inner = tileDst.submat(haloTop, haloTop + tileBottom - tileTop, 0, cols);
+                    Mat target = dst.submat(tileTop, tileBottom, 0, cols);
+                    inner.copyTo(target);
+
+                    inner.release();
+                    target.release();
+                    tileDst.release();
+                    tileSrc.release();
+                }
+            });
+        }
+        ProcessingPool.runAll(tiles);
+
+        if (input != src) {
+            input.release();
+        }
+    }
+
+    /**
+     * Runs the operation on an image that lives in a MappedMat, reading each tile with its halo
+     * from src and writing its rows into dst. Tiles are small enough that only the tiles being
+     * worked on are in memory, however large the image is.
+     *
+     * @param src       - the image to process
+     * @param dst       - receives the result; a different file of the same size, of the type the
+     *                  operation produces
+     * @param halo      - rows of context the operation needs on each side of a pixel
+     * @param operation - the operation to run on each tile
+     */
+    public void run(final MappedMat src, final MappedMat dst, final int halo, final TileOperation operation) {
+        if (src == dst || src.rows() != dst.rows() || src.cols() != dst.cols()) {
+            throw new IllegalArgumentException("dst must be another image of the same size as src");
+        }
+        final int rows = src.rows();
+        final int cols = src.cols();
+        int rowBytes = Math.max(cols * CvType.ELEM_SIZE(src.type()), 1);
+        int tileRows = Math.max(Math.min((rows + mTiles - 1) / mTiles, MAX_MAPPED_TILE_BYTES / rowBytes),
+                MIN_TILE_ROWS);
+
+        List<Runnable> tiles = new ArrayList<>();
+        for (int top = 0; top < rows; top += tileRows) {
+            final int tileTop = top;
+            final int tileBottom = Math.min(top + tileRows, rows);
+            tiles.add(new Runnable() {
+                @Override
+                public void run() {
+                    int haloTop = Math.min(halo, tileTop);
+                    int haloBottom = Math.min(halo, rows - tileBottom);
+                    Mat tileSrc = src.readRows(tileTop - haloTop, tileBottom + haloBottom);
+                    Mat tileDst = new Mat();
+                    operation.apply(tileSrc, tileDst);
+
+                    Mat inner = tileDst.submat(haloTop, haloTop + tileBottom - tileTop, 0, cols);
+                    dst.writeRows(inner, tileTop);
+
+                    inner.release();
+                    tileDst.release();
+                    tileSrc.release();
+                }
+            });
+        }
+        ProcessingPool.runAll(tiles);
+    }
+}
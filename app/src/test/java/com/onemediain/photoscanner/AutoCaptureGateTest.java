@@ -0,0 +1,148 @@
+package com.onemediain.photoscanner;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the stability count and the sharpness threshold. Needs the OpenCV native library
+ * on java.library.path and is skipped when it isn't there.
+ */
+public class AutoCaptureGateTest {
+
+    private static final int STABLE_FRAMES = 3;
+    private static final double MAX_CORNER_SHIFT = 4;
+    private static final double MIN_SHARPNESS = 100;
+
+    private AutoCaptureGate gate;
+    private Mat sharp;
+    private Mat flat;
+
+    @Before
+    public void setUp() {
+        try {
+            System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        } catch (UnsatisfiedLinkError e) {
+            Assume.assumeTrue("OpenCV native library not available", false);
+        }
+        gate = new AutoCaptureGate(STABLE_FRAMES, MAX_CORNER_SHIFT, MIN_SHARPNESS);
+
+        // 8 pixel checkerboard, plenty of strong second derivatives
+        sharp = new Mat(120, 160, CvType.CV_8UC1);
+        byte[] pixels = new byte[120 * 160];
+        for (int y = 0; y < 120; y++) {
+            for (int x = 0; x < 160; x++) {
+                pixels[y * 160 + x] = (byte) (((x / 8 + y / 8) % 2) * 255);
+            }
+        }
+        sharp.put(0, 0, pixels);
+        flat = new Mat(120, 160, CvType.CV_8UC1, new Scalar(128));
+    }
+
+    @After
+    public void tearDown() {
+        if (gate != null) {
+            gate.release();
+            sharp.release();
+            flat.release();
+        }
+    }
+
+    private static List<Point> quad(double dx, double dy) {
+        return Arrays.asList(new Point(20 + dx, 20 + dy), new Point(140 + dx, 20 + dy),
+                new Point(140 + dx, 100 + dy), new Point(20 + dx, 100 + dy));
+    }
+
+    @Test
+    public void triggersAfterStableFrames() {
+        for (int i = 1; i < STABLE_FRAMES; i++) {
+            assertFalse(gate.onFrame(quad(0, 0), sharp));
+            assertEquals(i, gate.getStableCount());
+        }
+        assertTrue(gate.onFrame(quad(0, 0), sharp));
+        assertTrue(gate.getLastSharpness() >= MIN_SHARPNESS);
+
+        // A capture starts the count over
+        assertEquals(0, gate.getStableCount());
+        assertFalse(gate.onFrame(quad(0, 0), sharp));
+    }
+
+    @Test
+    public void jitterWithinShiftKeepsCounting() {
+        gate.onFrame(quad(0, 0), sharp);
+        gate.onFrame(quad(2, -2), sharp);
+        assertEquals(2, gate.getStableCount());
+        assertTrue(gate.onFrame(quad(4, -2), sharp));
+    }
+
+    @Test
+    public void movedCornerRestartsCount() {
+        gate.onFrame(quad(0, 0), sharp);
+        gate.onFrame(quad(0, 0), sharp);
+        assertEquals(2, gate.getStableCount());
+
+        List<Point> moved = quad(0, 0);
+        moved.set(2, new Point(150, 100));
+        assertFalse(gate.onFrame(moved, sharp));
+        assertEquals(1, gate.getStableCount());
+
+        // The moved quad is the new reference
+        gate.onFrame(moved, sharp);
+        assertTrue(gate.onFrame(moved, sharp));
+    }
+
+    @Test
+    public void missingQuadResets() {
+        gate.onFrame(quad(0, 0), sharp);
+        gate.onFrame(quad(0, 0), sharp);
+        assertFalse(gate.onFrame(null, sharp));
+        assertEquals(0, gate.getStableCount());
+
+        assertFalse(gate.onFrame(quad(0, 0).subList(0, 3), sharp));
+        assertEquals(0, gate.getStableCount());
+
+        gate.onFrame(quad(0, 0), sharp);
+        assertEquals(1, gate.getStableCount());
+    }
+
+    @Test
+    public void blurryFramesDontTrigger() {
+        for (int i = 0; i < STABLE_FRAMES * 2; i++) {
+            assertFalse(gate.onFrame(quad(0, 0), flat));
+        }
+        assertTrue(gate.getLastSharpness() < MIN_SHARPNESS);
+        assertTrue(gate.getStableCount() >= STABLE_FRAMES);
+
+        // Once the quad is stable a single sharp frame is enough
+        assertTrue(gate.onFrame(quad(0, 0), sharp));
+    }
+
+    @Test
+    public void blurLowersSharpness() {
+        Mat blurred = new Mat();
+        Imgproc.GaussianBlur(sharp, blurred, new Size(15, 15), 0);
+
+        double sharpVariance = gate.sharpness(sharp, quad(0, 0));
+        double blurredVariance = gate.sharpness(blurred, quad(0, 0));
+        assertTrue(sharpVariance >= MIN_SHARPNESS);
+        assertTrue(blurredVariance < sharpVariance / 4);
+        assertEquals(0, gate.sharpness(sharp, Arrays.asList(new Point(10, 10), new Point(11, 10),
+                new Point(11, 11), new Point(10, 11))), 0);
+        blurred.release();
+    }
+}
@@ -0,0 +1,123 @@
+package com.onemediain.photoscanner;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encodes pages with CcittG4Encoder and decodes them with the JDK's TIFF reader, which needs
+ * Java 9 or later; on older JVMs the round trips are skipped.
+ */
+public class CcittG4EncoderTest {
+
+    static BilevelPage randomPage(int width, int height, double black, long seed) {
+        Random random = new Random(seed);
+        BilevelPage page = new BilevelPage(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (random.nextDouble() < black) {
+                    setBlack(page, x, y);
+                }
+            }
+        }
+        return page;
+    }
+
+    /**
+     * A page of text-like blocks, whose runs line up from row to row like scanned pages do.
+     */
+    static BilevelPage blockPage(int width, int height, long seed) {
+        Random random = new Random(seed);
+        BilevelPage page = new BilevelPage(width, height);
+        for (int block = 0; block < 40; block++) {
+            int left = random.nextInt(width);
+            int top = random.nextInt(height);
+            int right = Math.min(width, left + 1 + random.nextInt(width / 4 + 1));
+            int bottom = Math.min(height, top + 1 + random.nextInt(height / 4 + 1));
+            for (int y = top; y < bottom; y++) {
+                for (int x = left; x < right; x++) {
+                    setBlack(page, x, y);
+                }
+            }
+        }
+        return page;
+    }
+
+    static void setBlack(BilevelPage page, int x, int y) {
+        page.getData()[y * page.getStride() + (x >> 3)] |= 0x80 >>> (x & 7);
+    }
+
+    static void assertSamePixels(BilevelPage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                boolean black = (actual.getRGB(x, y) & 0xffffff) == 0;
+                assertEquals("pixel " + x + "," + y, expected.isBlack(x, y), black);
+            }
+        }
+    }
+
+    static void assumeTiffReader() {
+        Assume.assumeTrue("No TIFF reader in this JVM", ImageIO.getImageReadersByFormatName("tiff").hasNext());
+    }
+
+    private static void assertRoundTrip(BilevelPage page) throws IOException {
+        File file = File.createTempFile("page", ".tif");
+        try {
+            TiffWriter writer = new TiffWriter(file);
+            writer.addPage(page, 300);
+            writer.close();
+            assertSamePixels(page, ImageIO.read(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void whitePageIsOneCodePerRow() {
+        byte[] encoded = CcittG4Encoder.encode(new BilevelPage(1728, 100));
+
+        // One bit of V0 per row and the 24 bit end of block, padded to a byte
+        assertEquals((100 + 24 + 7) / 8, encoded.length);
+    }
+
+    @Test
+    public void roundTripsNoise() throws IOException {
+        assumeTiffReader();
+        assertRoundTrip(randomPage(203, 61, 0.5, 1));
+        assertRoundTrip(randomPage(64, 64, 0.05, 2));
+        assertRoundTrip(randomPage(1, 9, 0.5, 3));
+    }
+
+    @Test
+    public void roundTripsBlocks() throws IOException {
+        assumeTiffReader();
+        assertRoundTrip(blockPage(1728, 300, 4));
+        assertRoundTrip(blockPage(517, 233, 5));
+    }
+
+    @Test
+    public void roundTripsSolidPages() throws IOException {
+        assumeTiffReader();
+        assertRoundTrip(new BilevelPage(100, 10));
+        assertRoundTrip(randomPage(100, 10, 1, 6));
+    }
+
+    @Test
+    public void compressesScannedLikePages() {
+        BilevelPage page = blockPage(1728, 2200, 7);
+        int packed = page.getStride() * page.getHeight();
+
+        assertTrue(CcittG4Encoder.encode(page).length * 10 < packed);
+    }
+}
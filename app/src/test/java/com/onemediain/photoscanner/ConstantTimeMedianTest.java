@@ -0,0 +1,90 @@
+package com.onemediain.photoscanner;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks the histogram path against Imgproc.medianBlur. Needs the OpenCV native library on
+ * java.library.path and is skipped when it isn't there.
+ */
+public class ConstantTimeMedianTest {
+
+    @Before
+    public void loadOpenCV() {
+        try {
+            System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        } catch (UnsatisfiedLinkError e) {
+            Assume.assumeTrue("OpenCV native library not available", false);
+        }
+    }
+
+    /**
+     * Random noise over a gradient, taller than one band so band edges are covered.
+     */
+    private static Mat image(int rows, int cols, int type) {
+        Random random = new Random(rows * 31 + cols);
+        Mat image = new Mat(rows, cols, type);
+        byte[] pixels = new byte[(int) (image.total() * image.channels())];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) Math.min(255, i % 251 + random.nextInt(64));
+        }
+        image.put(0, 0, pixels);
+        return image;
+    }
+
+    private static byte[] pixels(Mat image) {
+        byte[] pixels = new byte[(int) (image.total() * image.channels())];
+        image.get(0, 0, pixels);
+        return pixels;
+    }
+
+    private static void assertMatchesMedianBlur(int type, int ksize) {
+        Mat src = image(150, 97, type);
+        Mat expected = new Mat();
+        Imgproc.medianBlur(src, expected, ksize);
+        Mat actual = new Mat();
+        ConstantTimeMedian.medianBlur(src, actual, ksize);
+
+        assertArrayEquals(pixels(expected), pixels(actual));
+        src.release();
+        expected.release();
+        actual.release();
+    }
+
+    @Test
+    public void singleChannelMatchesMedianBlur() {
+        assertMatchesMedianBlur(CvType.CV_8UC1, 7);
+        assertMatchesMedianBlur(CvType.CV_8UC1, 15);
+    }
+
+    @Test
+    public void threeChannelsMatchMedianBlur() {
+        assertMatchesMedianBlur(CvType.CV_8UC3, 9);
+    }
+
+    @Test
+    public void filtersInPlace() {
+        Mat image = image(150, 97, CvType.CV_8UC1);
+        Mat expected = new Mat();
+        Imgproc.medianBlur(image, expected, 11);
+        ConstantTimeMedian.medianBlur(image, image, 11);
+
+        assertArrayEquals(pixels(expected), pixels(image));
+        image.release();
+        expected.release();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEvenKernels() {
+        ConstantTimeMedian.medianBlur(new Mat(), new Mat(), 8);
+    }
+}
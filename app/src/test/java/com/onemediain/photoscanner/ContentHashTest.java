@@ -0,0 +1,91 @@
+package com.onemediain.photoscanner;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class ContentHashTest {
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+
+    @Test
+    public void hashesOnlyFromPositionToLimit() {
+        byte[] content = content(1000);
+        ByteBuffer whole = ByteBuffer.wrap(content, 100, 500);
+        ByteBuffer copy = ByteBuffer.allocateDirect(500);
+        copy.put(content, 100, 500).flip();
+
+        assertEquals(ContentHash.of(copy), ContentHash.of(whole));
+        assertEquals(ContentHash.ofAll(copy), ContentHash.ofAll(whole));
+        // Hashing leaves the buffer as it was
+        assertEquals(100, whole.position());
+        assertEquals(600, whole.limit());
+    }
+
+    @Test
+    public void smallContentIsHashedWhole() {
+        byte[] content = content(16 * 4096);
+
+        assertEquals(ContentHash.ofAll(ByteBuffer.wrap(content)), ContentHash.of(ByteBuffer.wrap(content)));
+    }
+
+    @Test
+    public void lengthIsPartOfTheHash() {
+        byte[] content = new byte[10];
+
+        assertNotEquals(ContentHash.of(ByteBuffer.wrap(content, 0, 9)), ContentHash.of(ByteBuffer.wrap(content)));
+        assertNotEquals(ContentHash.ofAll(ByteBuffer.wrap(content, 0, 9)), ContentHash.ofAll(ByteBuffer.wrap(content)));
+    }
+
+    @Test
+    public void sampleSeesTheFirstAndLastBlocks() {
+        byte[] content = content(1000 * 1000);
+        String hash = ContentHash.of(ByteBuffer.wrap(content));
+
+        content[0]++;
+        assertNotEquals(hash, ContentHash.of(ByteBuffer.wrap(content)));
+        content[0]--;
+        content[content.length - 1]++;
+        assertNotEquals(hash, ContentHash.of(ByteBuffer.wrap(content)));
+    }
+
+    @Test
+    public void onlyTheWholeHashSeesChangesBetweenBlocks() {
+        byte[] content = content(1000 * 1000);
+        String sampled = ContentHash.of(ByteBuffer.wrap(content));
+        String whole = ContentHash.ofAll(ByteBuffer.wrap(content));
+
+        // Past the first block and before the second, which starts a fifteenth of the way in
+        content[30 * 1000]++;
+        assertEquals(sampled, ContentHash.of(ByteBuffer.wrap(content)));
+        assertNotEquals(whole, ContentHash.ofAll(ByteBuffer.wrap(content)));
+    }
+
+    @Test
+    public void fileHashMatchesBufferHash() throws IOException {
+        byte[] content = content(300 * 1000);
+        File file = File.createTempFile("hash", ".bin");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(content);
+            } finally {
+                out.close();
+            }
+            assertEquals(ContentHash.of(ByteBuffer.wrap(content)), ContentHash.of(file));
+        } finally {
+            file.delete();
+        }
+    }
+}
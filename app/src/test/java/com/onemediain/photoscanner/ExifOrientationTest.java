@@ -0,0 +1,97 @@
+package com.onemediain.photoscanner;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExifOrientationTest {
+
+    /**
+     * The start of a JPEG with an APP0 segment and an Exif APP1 segment whose first IFD has an
+     * unrelated tag followed by the orientation, then the start of scan.
+     */
+    private static byte[] jpeg(ByteOrder order, int orientation, int type) {
+        ByteBuffer tiff = ByteBuffer.allocate(8 + 2 + 2 * 12 + 4).order(order);
+        tiff.putShort(order == ByteOrder.LITTLE_ENDIAN ? (short) 0x4949 : (short) 0x4d4d);
+        tiff.putShort((short) 42).putInt(8);
+        tiff.putShort((short) 2);
+        // Image width, a LONG
+        tiff.putShort((short) 0x0100).putShort((short) 4).putInt(1).putInt(4000);
+        tiff.putShort((short) 0x0112).putShort((short) type).putInt(1).putShort((short) orientation).putShort((short) 0);
+        tiff.putInt(0);
+
+        ByteBuffer jpeg = ByteBuffer.allocate(2 + 18 + 4 + 6 + tiff.capacity() + 4);
+        jpeg.putShort((short) 0xffd8);
+        jpeg.putShort((short) 0xffe0).putShort((short) 16).put("JFIF\0".getBytes()).put(new byte[9]);
+        jpeg.putShort((short) 0xffe1).putShort((short) (2 + 6 + tiff.capacity()));
+        jpeg.put("Exif\0\0".getBytes()).put(tiff.array());
+        jpeg.putShort((short) 0xffda).putShort((short) 2);
+        return jpeg.array();
+    }
+
+    private static int read(byte[] jpeg) {
+        return ExifOrientation.read(ByteBuffer.wrap(jpeg));
+    }
+
+    @Test
+    public void readsEveryOrientationInBothByteOrders() {
+        for (int orientation = ExifOrientation.NORMAL; orientation <= ExifOrientation.ROTATE_270; orientation++) {
+            assertEquals(orientation, read(jpeg(ByteOrder.BIG_ENDIAN, orientation, 3)));
+            assertEquals(orientation, read(jpeg(ByteOrder.LITTLE_ENDIAN, orientation, 3)));
+        }
+    }
+
+    @Test
+    public void readsFromTheBufferPosition() {
+        byte[] jpeg = jpeg(ByteOrder.LITTLE_ENDIAN, ExifOrientation.ROTATE_90, 3);
+        byte[] padded = new byte[jpeg.length + 20];
+        Arrays.fill(padded, (byte) 0xff);
+        System.arraycopy(jpeg, 0, padded, 7, jpeg.length);
+        ByteBuffer buffer = ByteBuffer.wrap(padded);
+        buffer.position(7);
+
+        assertEquals(ExifOrientation.ROTATE_90, ExifOrientation.read(buffer));
+        assertEquals(7, buffer.position());
+    }
+
+    @Test
+    public void outOfRangeOrWrongTypeReadsAsNormal() {
+        assertEquals(ExifOrientation.NORMAL, read(jpeg(ByteOrder.BIG_ENDIAN, 0, 3)));
+        assertEquals(ExifOrientation.NORMAL, read(jpeg(ByteOrder.BIG_ENDIAN, 9, 3)));
+        // The orientation is a SHORT, the right value under another type isn't trusted
+        assertEquals(ExifOrientation.NORMAL, read(jpeg(ByteOrder.BIG_ENDIAN, 6, 4)));
+    }
+
+    @Test
+    public void truncatedSegmentsReadAsNormal() {
+        byte[] jpeg = jpeg(ByteOrder.BIG_ENDIAN, ExifOrientation.ROTATE_180, 3);
+        for (int length = 0; length < jpeg.length - 4; length++) {
+            assertEquals("Length " + length, ExifOrientation.NORMAL, read(Arrays.copyOf(jpeg, length)));
+        }
+    }
+
+    @Test
+    public void otherDataReadsAsNormal() {
+        assertEquals(ExifOrientation.NORMAL, read(new byte[0]));
+        assertEquals(ExifOrientation.NORMAL, read("not a jpeg at all".getBytes()));
+
+        byte[] jpeg = jpeg(ByteOrder.LITTLE_ENDIAN, ExifOrientation.ROTATE_270, 3);
+        // Break the TIFF byte order mark
+        jpeg[2 + 18 + 4 + 6] = 'X';
+        assertEquals(ExifOrientation.NORMAL, read(jpeg));
+    }
+
+    @Test
+    public void onlyTheLastFourOrientationsSwapAxes() {
+        assertFalse(ExifOrientation.swapsAxes(ExifOrientation.NORMAL));
+        assertFalse(ExifOrientation.swapsAxes(ExifOrientation.FLIP_VERTICAL));
+        assertTrue(ExifOrientation.swapsAxes(ExifOrientation.TRANSPOSE));
+        assertTrue(ExifOrientation.swapsAxes(ExifOrientation.ROTATE_270));
+    }
+}
@@ -0,0 +1,76 @@
+package com.onemediain.photoscanner;
+
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assume.assumeTrue;
+
+public class FilterGraphTest {
+
+    private static boolean loadOpenCV() {
+        try {
+            System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+            return true;
+        } catch (UnsatisfiedLinkError e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void adjacentPointStagesFuseIntoOne() {
+        FilterGraph.Stage chain = FilterGraph.source().gray().linear(1.5, -40).gamma(1.5).invert();
+
+        assertEquals("source/gray/linear(1.5,-40.0)+gamma(1.5)+invert", chain.getKey());
+    }
+
+    @Test
+    public void otherStagesSeparatePointStages() {
+        FilterGraph.Stage chain = FilterGraph.source().invert().blur(3).invert();
+
+        assertEquals("source/invert/blur(3)/invert", chain.getKey());
+    }
+
+    @Test
+    public void fusedChainMatchesTheStagesOneByOne() {
+        assumeTrue("OpenCV native library not available", loadOpenCV());
+        Mat ramp = new Mat(1, 256, CvType.CV_8UC1);
+        byte[] values = new byte[256];
+        for (int value = 0; value < 256; value++) {
+            values[value] = (byte) value;
+        }
+        ramp.put(0, 0, values);
+
+        byte[] expected = new byte[256];
+        for (int value = 0; value < 256; value++) {
+            double linear = Math.min(Math.max(Math.round(1.5 * value - 40), 0), 255);
+            double gamma = Math.min(Math.max(Math.round(255 * Math.pow(linear / 255, 1.5)), 0), 255);
+            expected[value] = (byte) (gamma > 100 ? 255 : 0);
+        }
+        Mat result = FilterGraph.run(ramp, FilterGraph.source().linear(1.5, -40).gamma(1.5).threshold(100))[0];
+        byte[] actual = new byte[256];
+        result.get(0, 0, actual);
+
+        assertArrayEquals(expected, actual);
+        ramp.release();
+        result.release();
+    }
+
+    @Test
+    public void requestedSourceIsACopy() {
+        assumeTrue("OpenCV native library not available", loadOpenCV());
+        Mat image = new Mat(4, 4, CvType.CV_8UC1);
+        Mat[] results = FilterGraph.run(image, FilterGraph.source(), FilterGraph.source().invert());
+
+        assertNotSame(image, results[0]);
+        results[0].release();
+        assertFalse(image.empty());
+        image.release();
+        results[1].release();
+    }
+}
@@ -0,0 +1,109 @@
+package com.onemediain.photoscanner;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class IndexedPngWriterTest {
+
+    /**
+     * A page of random indices into a palette of the given number of colours. The width isn't a
+     * multiple of 8, so every depth ends its rows with a partly filled byte.
+     */
+    private static PalettePage page(int colors, int width, int height) {
+        Random random = new Random(colors);
+        byte[] palette = new byte[colors * 3];
+        random.nextBytes(palette);
+        byte[] indices = new byte[width * height];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = (byte) random.nextInt(colors);
+        }
+        return new PalettePage(width, height, palette, indices);
+    }
+
+    private static byte[] write(PalettePage page) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IndexedPngWriter.write(page, out);
+        return out.toByteArray();
+    }
+
+    private static void assertRoundTrip(int colors, int bitDepth) throws IOException {
+        PalettePage page = page(colors, 37, 23);
+        byte[] png = write(page);
+
+        // IHDR is the first chunk, right after the signature and its length and type
+        assertEquals(bitDepth, png[8 + 8 + 8]);
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        assertNotNull(image);
+        assertEquals(page.getWidth(), image.getWidth());
+        assertEquals(page.getHeight(), image.getHeight());
+        assertTrue(image.getColorModel() instanceof IndexColorModel);
+
+        IndexColorModel model = (IndexColorModel) image.getColorModel();
+        byte[] palette = page.getPalette();
+        for (int i = 0; i < colors; i++) {
+            assertEquals(palette[i * 3] & 0xff, model.getRed(i));
+            assertEquals(palette[i * 3 + 1] & 0xff, model.getGreen(i));
+            assertEquals(palette[i * 3 + 2] & 0xff, model.getBlue(i));
+        }
+        byte[] indices = page.getIndices();
+        for (int y = 0; y < page.getHeight(); y++) {
+            for (int x = 0; x < page.getWidth(); x++) {
+                assertEquals("Pixel " + x + ", " + y,
+                        indices[y * page.getWidth() + x] & 0xff, image.getRaster().getSample(x, y, 0));
+            }
+        }
+    }
+
+    @Test
+    public void twoColorsUseOneBit() throws IOException {
+        assertRoundTrip(2, 1);
+    }
+
+    @Test
+    public void fourColorsUseTwoBits() throws IOException {
+        assertRoundTrip(4, 2);
+    }
+
+    @Test
+    public void sixteenColorsUseFourBits() throws IOException {
+        assertRoundTrip(16, 4);
+    }
+
+    @Test
+    public void moreColorsUseEightBits() throws IOException {
+        assertRoundTrip(200, 8);
+    }
+
+    @Test
+    public void largePagesSpanSeveralDataChunks() throws IOException {
+        byte[] png = write(page(256, 1000, 600));
+
+        int chunks = 0;
+        int position = 8;
+        while (position < png.length) {
+            int length = (png[position] & 0xff) << 24 | (png[position + 1] & 0xff) << 16
+                    | (png[position + 2] & 0xff) << 8 | (png[position + 3] & 0xff);
+            if (new String(png, position + 4, 4, "US-ASCII").equals("IDAT")) {
+                assertTrue(length <= 64 * 1024);
+                chunks++;
+            }
+            position += 12 + length;
+        }
+        assertEquals(png.length, position);
+        assertTrue(chunks > 1);
+        assertNotNull(ImageIO.read(new ByteArrayInputStream(png)));
+    }
+}
@@ -0,0 +1,106 @@
+package com.onemediain.photoscanner;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the structure PdfWriter produces: cross-reference offsets, the page tree and embedded
+ * JPEG data.
+ */
+public class PdfWriterTest {
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private static byte[] jpeg(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, (x * 255 / width) << 16 | (y * 255 / height) << 8);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", out);
+        return out.toByteArray();
+    }
+
+    private static String write(byte[]... jpegs) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PdfWriter writer = new PdfWriter(out);
+        for (byte[] jpeg : jpegs) {
+            writer.addJpegPage(jpeg, 150);
+        }
+        BilevelPage page = new BilevelPage(40, 20);
+        page.getData()[0] = (byte) 0xf0;
+        writer.addBilevelPage(page, 300);
+        assertEquals(jpegs.length + 1, writer.getPageCount());
+        writer.close();
+        return new String(out.toByteArray(), LATIN1);
+    }
+
+    @Test
+    public void xrefOffsetsPointAtTheirObjects() throws IOException {
+        String pdf = write(jpeg(64, 48), jpeg(30, 50));
+
+        Matcher startxref = Pattern.compile("startxref\n(\\d+)\n%%EOF\n$").matcher(pdf);
+        assertTrue(startxref.find());
+        int xref = Integer.parseInt(startxref.group(1));
+        assertTrue(pdf.startsWith("xref\n0 ", xref));
+
+        Matcher table = Pattern.compile("xref\n0 (\\d+)\n0000000000 65535 f \n").matcher(pdf);
+        assertTrue(table.find(xref));
+        int size = Integer.parseInt(table.group(1));
+        // Three objects per page, plus the catalog and the page tree
+        assertEquals(3 * 3 + 2 + 1, size);
+        int entry = table.end();
+        for (int object = 1; object < size; object++, entry += 20) {
+            String line = pdf.substring(entry, entry + 20);
+            assertTrue(line, line.endsWith(" 00000 n \n"));
+            int offset = Integer.parseInt(line.substring(0, 10));
+            assertTrue("object " + object, pdf.startsWith(object + " 0 obj\n", offset));
+        }
+        assertTrue(pdf.contains("trailer\n<< /Size " + size + " /Root 1 0 R >>"));
+    }
+
+    @Test
+    public void pageTreeListsPagesInOrder() throws IOException {
+        String pdf = write(jpeg(64, 48), jpeg(30, 50));
+
+        Matcher pages = Pattern.compile("/Type /Pages /Kids \\[(.*)\\] /Count (\\d+)").matcher(pdf);
+        assertTrue(pages.find());
+        assertEquals(3, Integer.parseInt(pages.group(2)));
+        int previous = 0;
+        for (String kid : pages.group(1).trim().split(" 0 R ?")) {
+            int page = Integer.parseInt(kid.trim());
+            assertTrue(page > previous);
+            assertTrue(pdf.contains(page + " 0 obj\n<< /Type /Page /Parent 2 0 R"));
+            previous = page;
+        }
+    }
+
+    @Test
+    public void jpegIsEmbeddedUnchanged() throws IOException {
+        byte[] jpeg = jpeg(64, 48);
+        String pdf = write(jpeg);
+
+        String header = "/Width 64 /Height 48 /ColorSpace /DeviceRGB /BitsPerComponent 8 /Filter /DCTDecode /Length "
+                + jpeg.length + " >>\nstream\n";
+        int start = pdf.indexOf(header);
+        assertTrue(start >= 0);
+        start += header.length();
+        assertEquals(new String(jpeg, LATIN1), pdf.substring(start, start + jpeg.length));
+        assertTrue(pdf.startsWith("\nendstream", start + jpeg.length));
+        // A page of 64 pixels at 150 dpi is 30.72 points wide
+        assertTrue(pdf.contains("/MediaBox [0 0 30.72 23.04]"));
+    }
+}
@@ -0,0 +1,62 @@
+package com.onemediain.photoscanner;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ProcessingPoolTest {
+
+    private static List<Runnable> tasks(int count, final Runnable task) {
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    @Test
+    public void nestedTasksDontDeadlock() throws InterruptedException {
+        final int outer = ProcessingPool.getThreadCount() * 2;
+        final int inner = ProcessingPool.getThreadCount() * 2;
+        final AtomicInteger count = new AtomicInteger();
+        final Runnable leaf = new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+            }
+        };
+        // Every worker runs a task that splits its work across the pool again
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ProcessingPool.runAll(tasks(outer, new Runnable() {
+                    @Override
+                    public void run() {
+                        ProcessingPool.runAll(tasks(inner, leaf));
+                    }
+                }));
+            }
+        });
+        caller.setDaemon(true);
+        caller.start();
+        caller.join(10000);
+
+        assertFalse("Nested runAll didn't finish", caller.isAlive());
+        assertEquals(outer * inner, count.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rethrowsTaskExceptions() {
+        ProcessingPool.runAll(tasks(ProcessingPool.getThreadCount() + 1, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalArgumentException();
+            }
+        }));
+    }
+}
@@ -0,0 +1,63 @@
+package com.onemediain.photoscanner;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the size-independent part of a JPEG that TargetSizeJpegEncoder leaves out of scaling.
+ */
+public class TargetSizeJpegEncoderTest {
+
+    private static byte[] jpeg(int width, int height) throws IOException {
+        Random random = new Random(width * 31 + height);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void headerEndsAfterStartOfScan() throws IOException {
+        byte[] jpeg = jpeg(64, 64);
+        int header = TargetSizeJpegEncoder.headerBytes(jpeg);
+
+        // The start of scan segment ends where the entropy coded data begins
+        int sos = header - 2;
+        int start = 0;
+        for (int i = 0; i + 1 < jpeg.length; i++) {
+            if ((jpeg[i] & 0xff) == 0xff && (jpeg[i + 1] & 0xff) == 0xda) {
+                start = i + 2 + ((jpeg[i + 2] & 0xff) << 8 | (jpeg[i + 3] & 0xff));
+                break;
+            }
+        }
+        assertEquals(start, sos);
+        assertTrue(header < jpeg.length);
+    }
+
+    @Test
+    public void headerDoesNotGrowWithTheImage() throws IOException {
+        int small = TargetSizeJpegEncoder.headerBytes(jpeg(64, 64));
+        int large = TargetSizeJpegEncoder.headerBytes(jpeg(512, 384));
+
+        assertEquals(small, large);
+    }
+
+    @Test
+    public void unparsableDataHasNoHeader() {
+        assertEquals(0, TargetSizeJpegEncoder.headerBytes(new byte[]{(byte) 0xff, (byte) 0xd8, 1, 2, 3, 4}));
+    }
+}
@@ -0,0 +1,115 @@
+package com.onemediain.photoscanner;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the directory chain TiffWriter builds and decodes multi-page files with the JDK's TIFF
+ * reader, when there is one.
+ */
+public class TiffWriterTest {
+
+    private static ByteBuffer read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the value of a SHORT or LONG tag in the directory at the given offset
+     */
+    private static int tag(ByteBuffer tiff, int directory, int tag) {
+        int count = tiff.getShort(directory) & 0xffff;
+        for (int i = 0; i < count; i++) {
+            int entry = directory + 2 + i * 12;
+            if ((tiff.getShort(entry) & 0xffff) == tag) {
+                return tiff.getShort(entry + 2) == 3 ? tiff.getShort(entry + 8) & 0xffff : tiff.getInt(entry + 8);
+            }
+        }
+        throw new AssertionError("No tag " + tag);
+    }
+
+    @Test
+    public void directoriesAreLinkedInPageOrder() throws IOException {
+        File file = File.createTempFile("pages", ".tif");
+        try {
+            TiffWriter writer = new TiffWriter(file);
+            writer.addPage(new BilevelPage(31, 7), 200);
+            writer.addPage(new BilevelPage(64, 9), 300);
+            writer.addPage(new BilevelPage(5, 3), 600);
+            writer.close();
+
+            ByteBuffer tiff = read(file);
+            assertEquals(0x002a4949, tiff.getInt(0));
+            int[][] expected = {{31, 7, 200}, {64, 9, 300}, {5, 3, 600}};
+            int directory = tiff.getInt(4);
+            for (int[] page : expected) {
+                assertEquals(0, directory & 1);
+                assertEquals(page[0], tag(tiff, directory, 256));
+                assertEquals(page[1], tag(tiff, directory, 257));
+                assertEquals(4, tag(tiff, directory, 259));
+                int resolution = tag(tiff, directory, 282);
+                assertEquals(page[2], tiff.getInt(resolution));
+                assertEquals(1, tiff.getInt(resolution + 4));
+                int strip = tag(tiff, directory, 273);
+                assertTrue(strip + tag(tiff, directory, 279) <= directory);
+                directory = tiff.getInt(directory + 2 + (tiff.getShort(directory) & 0xffff) * 12);
+            }
+            assertEquals(0, directory);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void pagesDecodeWithTheJdkReader() throws IOException {
+        CcittG4EncoderTest.assumeTiffReader();
+        BilevelPage[] pages = {
+                CcittG4EncoderTest.blockPage(300, 120, 1),
+                CcittG4EncoderTest.randomPage(77, 40, 0.3, 2),
+                CcittG4EncoderTest.blockPage(640, 480, 3),
+        };
+        File file = File.createTempFile("pages", ".tif");
+        try {
+            TiffWriter writer = new TiffWriter(file);
+            for (BilevelPage page : pages) {
+                writer.addPage(page, 300);
+            }
+            writer.close();
+
+            ImageInputStream in = ImageIO.createImageInputStream(file);
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in);
+                assertEquals(pages.length, reader.getNumImages(true));
+                for (int i = 0; i < pages.length; i++) {
+                    CcittG4EncoderTest.assertSamePixels(pages[i], reader.read(i));
+                }
+            } finally {
+                reader.dispose();
+                in.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -47,9 +47,17 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
     protected int mCameraIndex = CAMERA_ID_ANY;
     protected boolean mEnabled;
     protected FpsMeter mFpsMeter = null;
+    protected FrameBudgetController mFrameBudget = null;
+    protected boolean mBudgetAdjustsPreview = false;
     private int mState = STOPPED;
     private Bitmap mCacheBitmap;
     private CvCameraViewListener2 mListener;
+    private CvCameraViewOverlay mOverlay;
+    private final Rect mSrcRect = new Rect();
+    private final Rect mDstRect = new Rect();
+    private boolean mDrawGeometryValid = false;
+    private int mGeometryCanvasWidth;
+    private int mGeometryCanvasHeight;
     private boolean mSurfaceExist;
     private Object mSyncObject = new Object();
 
@@ -153,6 +161,40 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
         mFpsMeter = null;
     }
 
+    /**
+     * This method enables measuring the time spent on every frame and adapting the resolution
+     * to keep it within the given budget. Listeners can read the current factor with
+     * getProcessingScale() and shrink the image they process accordingly. If adjustPreviewSize
+     * is set, the camera is also restarted with a smaller (or larger) preview size whenever
+     * the factor changes.
+     *
+     * @param budgetMillis      - the target time for processing and drawing a single frame
+     * @param adjustPreviewSize - whether the camera preview size follows the scale factor
+     */
+    public void enableFrameBudget(long budgetMillis, boolean adjustPreviewSize) {
+        mFrameBudget = new FrameBudgetController(budgetMillis);
+        mBudgetAdjustsPreview = adjustPreviewSize;
+    }
+
+    public void disableFrameBudget() {
+        boolean restart = mFrameBudget != null && mBudgetAdjustsPreview && mFrameBudget.getLevel() != 0;
+        mFrameBudget = null;
+        mBudgetAdjustsPreview = false;
+        if (restart)
+            restartCamera();
+    }
+
+    /**
+     * @return the factor the listener should scale its processing resolution by, 1 when the
+     * frame budget is disabled or the preview size itself is being adjusted
+     */
+    public double getProcessingScale() {
+        FrameBudgetController budget = mFrameBudget;
+        if (budget == null || mBudgetAdjustsPreview)
+            return 1.0;
+        return budget.getScale();
+    }
+
     /**
      * @param listener
      */
@@ -167,6 +209,15 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
         mListener = adapter;
     }
 
+    /**
+     * Sets the overlay drawn on top of every frame. See CvCameraViewOverlay.
+     *
+     * @param overlay - the overlay, or null to remove it
+     */
+    public void setCvCameraViewOverlay(CvCameraViewOverlay overlay) {
+        mOverlay = overlay;
+    }
+
     /**
      * This method sets the maximum size that camera frame is allowed to be. When selecting
      * size - the biggest size which less or equal the size set will be selected.
@@ -190,6 +241,27 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
         }
     }
 
+    /**
+     * Reconnects the camera so a new preview size is picked. Posted to the UI thread because
+     * disconnecting waits for the frame processing thread to finish.
+     */
+    private void restartCamera() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mSyncObject) {
+                    if (mSurfaceExist) {
+                        /* Same as a surface change: stop and start again with new parameters */
+                        mSurfaceExist = false;
+                        checkCurrentState();
+                        mSurfaceExist = true;
+                        checkCurrentState();
+                    }
+                }
+            }
+        });
+    }
+
     /**
      * Called when mSyncObject lock is held
      */
@@ -284,16 +356,38 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
      * @param frame - the current frame to be delivered
      */
     protected void deliverAndDrawFrame(CvCameraViewFrame frame) {
-        Mat modified;
+        long startTime = System.nanoTime();
+        drawFrame(deliverFrame(frame), startTime);
+    }
 
+    /**
+     * Delivers the frame to the external client and returns the Mat to display.
+     * Subclasses that process frames on several threads call this from the worker threads
+     * and drawFrame() afterwards, one frame at a time and in capture order.
+     *
+     * @param frame - the current frame to be delivered
+     * @return the modified frame, or null if the previous bitmap should be shown again
+     */
+    protected Mat deliverFrame(CvCameraViewFrame frame) {
         if (mListener != null) {
-            modified = mListener.onCameraFrame(frame);
+            return mListener.onCameraFrame(frame);
         } else {
-            modified = frame.rgba();
+            return frame.rgba();
         }
+    }
+
+    /**
+     * Displays a frame returned by deliverFrame().
+     *
+     * @param modified  - the Mat to display
+     * @param startTime - System.nanoTime() when processing of the frame started, for the frame budget
+     */
+    protected void drawFrame(Mat modified, long startTime) {
+        CvCameraViewOverlay overlay = mOverlay;
+        boolean overlayOnly = overlay != null && overlay.isOverlayOnlyUpdate();
 
         boolean bmpValid = true;
-        if (modified != null) {
+        if (modified != null && !overlayOnly) {
             try {
                 Utils.matToBitmap(modified, mCacheBitmap);
             } catch (Exception e) {
@@ -308,21 +402,11 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
             Canvas canvas = getHolder().lockCanvas();
             if (canvas != null) {
                 canvas.drawColor(0, android.graphics.PorterDuff.Mode.CLEAR);
-                if (BuildConfig.DEBUG)
-                    Log.d(TAG, "mStretch value: " + mScale);
-
-                if (mScale != 0) {
-                    canvas.drawBitmap(mCacheBitmap, new Rect(0, 0, mCacheBitmap.getWidth(), mCacheBitmap.getHeight()),
-                            new Rect((int) ((canvas.getWidth() - mScale * mCacheBitmap.getWidth()) / 2),
-                                    (int) ((canvas.getHeight() - mScale * mCacheBitmap.getHeight()) / 2),
-                                    (int) ((canvas.getWidth() - mScale * mCacheBitmap.getWidth()) / 2 + mScale * mCacheBitmap.getWidth()),
-                                    (int) ((canvas.getHeight() - mScale * mCacheBitmap.getHeight()) / 2 + mScale * mCacheBitmap.getHeight())), null);
-                } else {
-                    canvas.drawBitmap(mCacheBitmap, new Rect(0, 0, mCacheBitmap.getWidth(), mCacheBitmap.getHeight()),
-                            new Rect((canvas.getWidth() - mCacheBitmap.getWidth()) / 2,
-                                    (canvas.getHeight() - mCacheBitmap.getHeight()) / 2,
-                                    (canvas.getWidth() - mCacheBitmap.getWidth()) / 2 + mCacheBitmap.getWidth(),
-                                    (canvas.getHeight() - mCacheBitmap.getHeight()) / 2 + mCacheBitmap.getHeight()), null);
+                updateDrawGeometry(canvas);
+                canvas.drawBitmap(mCacheBitmap, mSrcRect, mDstRect, null);
+
+                if (overlay != null) {
+                    overlay.onDrawOverlay(canvas, mDstRect, mScale != 0 ? mScale : 1);
                 }
 
                 if (mFpsMeter != null) {
@@ -332,6 +416,44 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
                 getHolder().unlockCanvasAndPost(canvas);
             }
         }
+
+        FrameBudgetController budget = mFrameBudget;
+        if (budget != null && budget.onFrameProcessed(System.nanoTime() - startTime) && mBudgetAdjustsPreview) {
+            restartCamera();
+        }
+    }
+
+    /**
+     * Recomputes where the cached bitmap is drawn, but only when the canvas size changed or the
+     * bitmap was reallocated, so drawing a frame does not allocate anything.
+     */
+    private void updateDrawGeometry(Canvas canvas) {
+        int canvasWidth = canvas.getWidth();
+        int canvasHeight = canvas.getHeight();
+        if (mDrawGeometryValid && canvasWidth == mGeometryCanvasWidth && canvasHeight == mGeometryCanvasHeight)
+            return;
+
+        int bitmapWidth = mCacheBitmap.getWidth();
+        int bitmapHeight = mCacheBitmap.getHeight();
+        mSrcRect.set(0, 0, bitmapWidth, bitmapHeight);
+        if (mScale != 0) {
+            mDstRect.set((int) ((canvasWidth - mScale * bitmapWidth) / 2),
+                    (int) ((canvasHeight - mScale * bitmapHeight) / 2),
+                    (int) ((canvasWidth - mScale * bitmapWidth) / 2 + mScale * bitmapWidth),
+                    (int) ((canvasHeight - mScale * bitmapHeight) / 2 + mScale * bitmapHeight));
+        } else {
+            mDstRect.set((canvasWidth - bitmapWidth) / 2,
+                    (canvasHeight - bitmapHeight) / 2,
+                    (canvasWidth - bitmapWidth) / 2 + bitmapWidth,
+                    (canvasHeight - bitmapHeight) / 2 + bitmapHeight);
+        }
+
+        if (BuildConfig.DEBUG)
+            Log.d(TAG, "mStretch value: " + mScale);
+
+        mGeometryCanvasWidth = canvasWidth;
+        mGeometryCanvasHeight = canvasHeight;
+        mDrawGeometryValid = true;
     }
 
     /**
@@ -353,12 +475,15 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
     // NOTE: On Android 4.1.x the function must be called before SurfaceTexture constructor!
     protected void AllocateCache() {
         mCacheBitmap = Bitmap.createBitmap(mFrameWidth, mFrameHeight, Bitmap.Config.ARGB_8888);
+        mDrawGeometryValid = false;
     }
 
     /**
      * This helper method can be called by subclasses to select camera preview size.
      * It goes over the list of the supported preview sizes and selects the maximum one which
-     * fits both values set via setMaxFrameSize() and surface frame allocated for this view
+     * fits both values set via setMaxFrameSize() and surface frame allocated for this view.
+     * When the frame budget adjusts the preview size, both limits are scaled down first and
+     * the smallest supported size is used if none fits.
      *
      * @param supportedSizes
      * @param surfaceWidth
@@ -372,6 +497,12 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
         int maxAllowedWidth = (mMaxWidth != MAX_UNSPECIFIED && mMaxWidth < surfaceWidth) ? mMaxWidth : surfaceWidth;
         int maxAllowedHeight = (mMaxHeight != MAX_UNSPECIFIED && mMaxHeight < surfaceHeight) ? mMaxHeight : surfaceHeight;
 
+        FrameBudgetController budget = mFrameBudget;
+        if (budget != null && mBudgetAdjustsPreview) {
+            maxAllowedWidth = (int) (maxAllowedWidth * budget.getScale());
+            maxAllowedHeight = (int) (maxAllowedHeight * budget.getScale());
+        }
+
         for (Object size : supportedSizes) {
             int width = accessor.getWidth(size);
             int height = accessor.getHeight(size);
@@ -384,6 +515,18 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
             }
         }
 
+        if (calcWidth == 0 && budget != null && mBudgetAdjustsPreview) {
+            for (Object size : supportedSizes) {
+                int width = accessor.getWidth(size);
+                int height = accessor.getHeight(size);
+
+                if (calcWidth == 0 || (width <= calcWidth && height <= calcHeight)) {
+                    calcWidth = width;
+                    calcHeight = height;
+                }
+            }
+        }
+
         return new Size(calcWidth, calcHeight);
     }
 
@@ -452,6 +595,28 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
         Mat gray();
     }
 
+    /**
+     * This interface can be implemented by clients that draw their annotations (detected
+     * outlines, hints) with the Canvas API instead of into the Mat returned from onCameraFrame().
+     */
+    public interface CvCameraViewOverlay {
+        /**
+         * This method is invoked right after onCameraFrame(). Returning true means the frame
+         * content has not changed since the previous frame and only the overlay has, so the
+         * previously converted bitmap is drawn again without another Mat to Bitmap conversion.
+         */
+        boolean isOverlayOnlyUpdate();
+
+        /**
+         * This method is invoked to draw the overlay on top of the frame bitmap.
+         *
+         * @param canvas    - the canvas of this SurfaceView
+         * @param frameRect - the rectangle the frame bitmap occupies on the canvas
+         * @param scale     - the factor from frame coordinates to canvas coordinates
+         */
+        void onDrawOverlay(Canvas canvas, Rect frameRect, float scale);
+    }
+
     public interface ListItemAccessor {
         int getWidth(Object obj);
 
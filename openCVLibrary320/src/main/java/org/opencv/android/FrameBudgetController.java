@@ -0,0 +1,110 @@
+package org.opencv.android;
+
+import android.util.Log;
+
+/**
+ * Keeps the per-frame processing time close to a target budget by stepping a resolution
+ * scale down when frames are consistently too slow and back up when there is plenty of
+ * headroom. Latency is smoothed with an exponential moving average, and the two thresholds
+ * and a cooldown after each step provide the hysteresis that prevents oscillation.
+ */
+public class FrameBudgetController {
+    private static final String TAG = "FrameBudgetController";
+    private static final double[] SCALES = {1.0, 0.75, 0.5, 0.375, 0.25};
+    private static final double SMOOTHING = 0.1;
+    private static final double STEP_DOWN_RATIO = 1.0;
+    private static final double STEP_UP_RATIO = 0.6;
+    private static final int STEP_DOWN_FRAMES = 5;
+    private static final int STEP_UP_FRAMES = 30;
+    private static final int COOLDOWN_FRAMES = 15;
+
+    private long mBudgetNanos;
+    private double mAverageNanos;
+    private int mLevel;
+    private int mOverBudgetFrames;
+    private int mUnderBudgetFrames;
+    private int mCooldown;
+
+    /**
+     * @param budgetMillis - the target processing time of a single frame
+     */
+    public FrameBudgetController(long budgetMillis) {
+        setBudget(budgetMillis);
+    }
+
+    public void setBudget(long budgetMillis) {
+        mBudgetNanos = budgetMillis * 1000000L;
+        reset();
+    }
+
+    /**
+     * Forgets the latency history, e.g. after the camera was restarted.
+     */
+    public void reset() {
+        mAverageNanos = 0;
+        mOverBudgetFrames = 0;
+        mUnderBudgetFrames = 0;
+        mCooldown = COOLDOWN_FRAMES;
+    }
+
+    /**
+     * Records the processing time of one frame.
+     *
+     * @param elapsedNanos - time spent between receiving the frame and posting it to the screen
+     * @return true if the scale changed as a result of this measurement
+     */
+    public boolean onFrameProcessed(long elapsedNanos) {
+        // Let the latency settle after a resolution change before judging it
+        if (mCooldown > 0) {
+            mCooldown--;
+            return false;
+        }
+
+        if (mAverageNanos == 0)
+            mAverageNanos = elapsedNanos;
+        else
+            mAverageNanos += SMOOTHING * (elapsedNanos - mAverageNanos);
+
+        if (mAverageNanos > mBudgetNanos * STEP_DOWN_RATIO) {
+            mOverBudgetFrames++;
+            mUnderBudgetFrames = 0;
+        } else if (mAverageNanos < mBudgetNanos * STEP_UP_RATIO) {
+            mUnderBudgetFrames++;
+            mOverBudgetFrames = 0;
+        } else {
+            mOverBudgetFrames = 0;
+            mUnderBudgetFrames = 0;
+        }
+
+        if (mOverBudgetFrames >= STEP_DOWN_FRAMES && mLevel < SCALES.length - 1) {
+            return step(1);
+        }
+        if (mUnderBudgetFrames >= STEP_UP_FRAMES && mLevel > 0) {
+            return step(-1);
+        }
+        return false;
+    }
+
+    private boolean step(int direction) {
+        mLevel += direction;
+        Log.i(TAG, "Average frame time " + (long) (mAverageNanos / 1000000) + " ms, budget "
+                + mBudgetNanos / 1000000 + " ms, scale changed to " + SCALES[mLevel]);
+        reset();
+        return true;
+    }
+
+    /**
+     * @return the factor that the processing resolution should be multiplied with
+     */
+    public double getScale() {
+        return SCALES[mLevel];
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    public double getAverageMillis() {
+        return mAverageNanos / 1000000;
+    }
+}
@@ -0,0 +1,69 @@
+package org.opencv.android;
+
+import java.util.TreeMap;
+
+/**
+ * Collects frames processed out of order by several worker threads and hands them on in
+ * capture order. A frame that finishes after a newer one has already been displayed is stale
+ * and dropped. If too many results pile up behind a frame that is still being processed, the
+ * buffer skips ahead to the oldest finished frame so that one slow frame cannot stall the
+ * preview; the slow frame is then dropped when it finally completes.
+ */
+class FrameReorderBuffer<T> {
+
+    interface Sink<T> {
+        /**
+         * Called with the lock of the buffer held, one frame at a time, in capture order.
+         */
+        void deliver(T frame);
+
+        /**
+         * Called for frames that are stale and will never be delivered.
+         */
+        void drop(T frame);
+    }
+
+    private final TreeMap<Long, T> mPending = new TreeMap<Long, T>();
+    private final int mMaxPending;
+    private final Sink<T> mSink;
+    private long mNextSequence = 0;
+
+    /**
+     * @param maxPending - how many finished frames may wait for an older one before skipping it
+     * @param sink       - receives the ordered frames
+     */
+    FrameReorderBuffer(int maxPending, Sink<T> sink) {
+        mMaxPending = maxPending;
+        mSink = sink;
+    }
+
+    /**
+     * Reports that the frame with the given capture sequence number has been processed.
+     * Sequence numbers must start at 0 and have no gaps.
+     */
+    synchronized void complete(long sequence, T frame) {
+        if (sequence < mNextSequence) {
+            mSink.drop(frame);
+            return;
+        }
+
+        mPending.put(sequence, frame);
+        if (mPending.size() > mMaxPending)
+            mNextSequence = mPending.firstKey();
+
+        while (!mPending.isEmpty() && mPending.firstKey() == mNextSequence) {
+            mSink.deliver(mPending.pollFirstEntry().getValue());
+            mNextSequence++;
+        }
+    }
+
+    /**
+     * Drops everything still waiting and starts again from sequence number 0.
+     */
+    synchronized void clear() {
+        while (!mPending.isEmpty()) {
+            mSink.drop(mPending.pollFirstEntry().getValue());
+        }
+        mNextSequence = 0;
+    }
+}
@@ -16,7 +16,13 @@ import org.opencv.core.Mat;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class is an implementation of the Bridge View between OpenCV and Java Camera.
@@ -26,6 +32,7 @@ import java.util.List;
  * disconnectCamera - closes the camera and stops preview.
  * When frame is delivered via callback from Camera - it processed via OpenCV to be
  * converted to RGBA32 and then passed to the external callback for modifications if required.
+ * Frames can optionally be processed by several threads, see setProcessingThreads().
  */
 public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallback {
 
@@ -40,6 +47,12 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
     private boolean mStopThread;
     private SurfaceTexture mSurfaceTexture;
     private boolean mCameraFrameReady = false;
+    private int mProcessingThreads = 1;
+    private ExecutorService mProcessingPool;
+    private List<PooledFrame> mPooledFrames;
+    private BlockingQueue<PooledFrame> mFreeFrames;
+    private FrameReorderBuffer<PooledFrame> mReorderBuffer;
+    private long mNextSequence;
 
     public JavaCameraView(Context context, int cameraId) {
         super(context, cameraId);
@@ -49,6 +62,20 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
         super(context, attrs);
     }
 
+    /**
+     * Sets the number of threads that run onCameraFrame(). With more than one thread the
+     * callback is invoked concurrently for consecutive frames, so it must be thread safe and
+     * must not return a Mat that is shared between calls (returning inputFrame.rgba() is fine).
+     * Results are still displayed in capture order; a result that arrives after a newer frame
+     * has been displayed is dropped, and so are camera frames that arrive while every worker
+     * is busy. Takes effect the next time the camera is connected.
+     *
+     * @param threads - the number of worker threads, 1 to process frames on the camera thread
+     */
+    public void setProcessingThreads(int threads) {
+        mProcessingThreads = Math.max(threads, 1);
+    }
+
     protected boolean initializeCamera(int width, int height) {
         Log.d(TAG, "Initialize java camera");
         boolean result = true;
@@ -225,6 +252,9 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
 
         mCameraFrameReady = false;
 
+        if (mProcessingThreads > 1)
+            startProcessingPool();
+
         /* now we can start update thread */
         Log.d(TAG, "Starting processing thread");
         mStopThread = false;
@@ -255,6 +285,8 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
             mThread = null;
         }
 
+        stopProcessingPool();
+
         /* Now release camera */
         releaseCamera();
 
@@ -274,6 +306,91 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
             mCamera.addCallbackBuffer(mBuffer);
     }
 
+    private void startProcessingPool() {
+        Log.d(TAG, "Starting " + mProcessingThreads + " processing threads");
+        /* Enough buffers for every worker plus the finished frames waiting to be displayed */
+        int poolSize = mProcessingThreads * 2;
+        /* The sink and the frames keep their own pool's queue and buffer, so a worker left over
+         * from a pool that didn't stop in time can't reach the buffers of the next one */
+        final BlockingQueue<PooledFrame> freeFrames = new ArrayBlockingQueue<PooledFrame>(poolSize);
+        mReorderBuffer = new FrameReorderBuffer<PooledFrame>(mProcessingThreads, new FrameReorderBuffer.Sink<PooledFrame>() {
+            @Override
+            public void deliver(PooledFrame frame) {
+                if (!mStopThread)
+                    drawFrame(frame.mResult, frame.mStartTime);
+                recycle(freeFrames, frame);
+            }
+
+            @Override
+            public void drop(PooledFrame frame) {
+                recycle(freeFrames, frame);
+            }
+        });
+        mPooledFrames = new ArrayList<PooledFrame>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            PooledFrame frame = new PooledFrame(mFrameWidth, mFrameHeight, mReorderBuffer);
+            mPooledFrames.add(frame);
+            freeFrames.add(frame);
+        }
+        mFreeFrames = freeFrames;
+        mNextSequence = 0;
+        mProcessingPool = Executors.newFixedThreadPool(mProcessingThreads);
+    }
+
+    private void stopProcessingPool() {
+        if (mProcessingPool == null)
+            return;
+
+        ExecutorService pool = mProcessingPool;
+        mProcessingPool = null;
+        pool.shutdown();
+        boolean terminated = false;
+        try {
+            terminated = pool.awaitTermination(2, TimeUnit.SECONDS);
+            if (!terminated) {
+                Log.w(TAG, "Processing threads did not finish in time, interrupting them");
+                pool.shutdownNow();
+                terminated = pool.awaitTermination(2, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        if (terminated) {
+            mReorderBuffer.clear();
+            for (PooledFrame frame : mPooledFrames) {
+                frame.release();
+            }
+        } else {
+            /* A worker may still be using its frame: leak the buffers rather than free memory in use */
+            Log.e(TAG, "Processing threads are still running, leaking " + mPooledFrames.size() + " frame buffers");
+        }
+        mPooledFrames = null;
+        mFreeFrames = null;
+    }
+
+    /**
+     * Copies the camera frame into a free buffer and hands it to the processing pool.
+     * Called from the camera worker thread only.
+     */
+    private void dispatchFrame(Mat yuvFrame) {
+        PooledFrame frame = mFreeFrames.poll();
+        if (frame == null) {
+            /* Every buffer is being processed or waiting to be displayed: skip this frame */
+            return;
+        }
+        frame.mStartTime = System.nanoTime();
+        yuvFrame.copyTo(frame.mYuvFrameData);
+        frame.mSequence = mNextSequence++;
+        mProcessingPool.execute(frame);
+    }
+
+    private static void recycle(BlockingQueue<PooledFrame> freeFrames, PooledFrame frame) {
+        frame.mResult = null;
+        freeFrames.offer(frame);
+    }
+
     public static class JavaCameraSizeAccessor implements ListItemAccessor {
 
         @Override
@@ -319,6 +436,37 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
         }
     }
 
+    private class PooledFrame implements Runnable {
+        private final Mat mYuvFrameData;
+        private final JavaCameraFrame mFrame;
+        private final FrameReorderBuffer<PooledFrame> mReorderBuffer;
+        private long mSequence;
+        private long mStartTime;
+        private Mat mResult;
+
+        public PooledFrame(int width, int height, FrameReorderBuffer<PooledFrame> reorderBuffer) {
+            mYuvFrameData = new Mat(height + (height / 2), width, CvType.CV_8UC1);
+            mFrame = new JavaCameraFrame(mYuvFrameData, width, height);
+            mReorderBuffer = reorderBuffer;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mResult = deliverFrame(mFrame);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Frame processing failed: " + e.getMessage());
+                mResult = null;
+            }
+            mReorderBuffer.complete(mSequence, this);
+        }
+
+        public void release() {
+            mFrame.release();
+            mYuvFrameData.release();
+        }
+    }
+
     private class CameraWorker implements Runnable {
 
         @Override
@@ -341,8 +489,12 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
                 }
 
                 if (!mStopThread && hasFrame) {
-                    if (!mFrameChain[1 - mChainIdx].empty())
-                        deliverAndDrawFrame(mCameraFrame[1 - mChainIdx]);
+                    if (!mFrameChain[1 - mChainIdx].empty()) {
+                        if (mProcessingPool != null)
+                            dispatchFrame(mFrameChain[1 - mChainIdx]);
+                        else
+                            deliverAndDrawFrame(mCameraFrame[1 - mChainIdx]);
+                    }
                 }
             } while (!mStopThread);
             Log.d(TAG, "Finish processing thread");
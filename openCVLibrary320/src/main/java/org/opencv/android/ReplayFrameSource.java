@@ -0,0 +1,225 @@
+package org.opencv.android;
+
+import org.opencv.android.CameraBridgeViewBase.CvCameraViewFrame;
+import org.opencv.android.CameraBridgeViewBase.CvCameraViewListener2;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.Arrays;
+
+/**
+ * Replays a video file or a directory of images through the same CvCameraViewFrame contract
+ * the camera views use, so a CvCameraViewListener2 can be driven without a device.
+ * This class deliberately uses no Android APIs: it runs on a plain JVM with only the OpenCV
+ * native library loaded, which makes it usable for benchmarks and regression tests.
+ * All frames are delivered with the size of the first one; later frames of a different size
+ * are resized to match, just like a camera never changes its preview size mid-stream.
+ */
+public class ReplayFrameSource implements CvCameraViewFrame {
+    private static final String[] IMAGE_EXTENSIONS = {".jpg", ".jpeg", ".png", ".bmp", ".tif", ".tiff"};
+
+    private VideoCapture mCapture;
+    private File[] mImages;
+    private int mImageIdx = 0;
+    private double mFrameRate = 0;
+    private boolean mLoop = false;
+
+    private final Mat mBgr = new Mat();
+    private final Mat mRgba = new Mat();
+    private final Mat mGray = new Mat();
+    private boolean mRgbaValid;
+    private boolean mGrayValid;
+    private int mWidth = 0;
+    private int mHeight = 0;
+
+    private int mDeliveredFrames = 0;
+    private long mListenerNanos = 0;
+
+    private ReplayFrameSource() {
+    }
+
+    /**
+     * Creates a source reading frames from a video file through VideoCapture.
+     * The frame rate defaults to the one stored in the file, if any.
+     */
+    public static ReplayFrameSource fromVideo(String path) {
+        ReplayFrameSource source = new ReplayFrameSource();
+        source.mCapture = new VideoCapture(path);
+        if (!source.mCapture.isOpened())
+            throw new IllegalArgumentException("Cannot open video " + path);
+        source.mFrameRate = Math.max(source.mCapture.get(Videoio.CAP_PROP_FPS), 0);
+        return source;
+    }
+
+    /**
+     * Creates a source reading every image in the directory, in file name order.
+     */
+    public static ReplayFrameSource fromImageDirectory(File directory) {
+        File[] images = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName().toLowerCase();
+                for (String extension : IMAGE_EXTENSIONS) {
+                    if (name.endsWith(extension))
+                        return file.isFile();
+                }
+                return false;
+            }
+        });
+        if (images == null || images.length == 0)
+            throw new IllegalArgumentException("No images found in " + directory);
+        Arrays.sort(images);
+
+        ReplayFrameSource source = new ReplayFrameSource();
+        source.mImages = images;
+        return source;
+    }
+
+    /**
+     * Sets the rate frames are delivered at by run(). Zero delivers them as fast as the listener
+     * consumes them, which is what throughput measurements want.
+     */
+    public void setFrameRate(double framesPerSecond) {
+        mFrameRate = framesPerSecond;
+    }
+
+    /**
+     * Makes the source start over from the first frame once it reaches the end.
+     */
+    public void setLoop(boolean loop) {
+        mLoop = loop;
+    }
+
+    /**
+     * Advances to the next frame.
+     *
+     * @return false when there are no more frames
+     */
+    public boolean grab() {
+        if (!readNext()) {
+            if (!mLoop || !rewind() || !readNext())
+                return false;
+        }
+
+        if (mWidth == 0) {
+            mWidth = mBgr.cols();
+            mHeight = mBgr.rows();
+        } else if (mBgr.cols() != mWidth || mBgr.rows() != mHeight) {
+            Imgproc.resize(mBgr, mBgr, new Size(mWidth, mHeight), 0, 0, Imgproc.INTER_AREA);
+        }
+        mRgbaValid = false;
+        mGrayValid = false;
+        return true;
+    }
+
+    private boolean readNext() {
+        if (mCapture != null)
+            return mCapture.read(mBgr) && !mBgr.empty();
+
+        while (mImageIdx < mImages.length) {
+            Mat image = Imgcodecs.imread(mImages[mImageIdx++].getAbsolutePath());
+            if (!image.empty()) {
+                image.copyTo(mBgr);
+                image.release();
+                return true;
+            }
+            image.release();
+        }
+        return false;
+    }
+
+    private boolean rewind() {
+        if (mCapture != null)
+            return mCapture.set(Videoio.CAP_PROP_POS_FRAMES, 0);
+        mImageIdx = 0;
+        return true;
+    }
+
+    @Override
+    public Mat rgba() {
+        if (!mRgbaValid) {
+            Imgproc.cvtColor(mBgr, mRgba, Imgproc.COLOR_BGR2RGBA, 4);
+            mRgbaValid = true;
+        }
+        return mRgba;
+    }
+
+    @Override
+    public Mat gray() {
+        if (!mGrayValid) {
+            Imgproc.cvtColor(mBgr, mGray, Imgproc.COLOR_BGR2GRAY);
+            mGrayValid = true;
+        }
+        return mGray;
+    }
+
+    /**
+     * Drives the listener the way a camera view does: onCameraViewStarted with the frame size,
+     * onCameraFrame for every frame, and onCameraViewStopped at the end.
+     *
+     * @param listener  - the listener to feed
+     * @param maxFrames - stop after this many frames, or 0 to play until the source ends
+     * @return the number of frames delivered
+     */
+    public int run(CvCameraViewListener2 listener, int maxFrames) throws InterruptedException {
+        mDeliveredFrames = 0;
+        mListenerNanos = 0;
+
+        if (!grab())
+            return 0;
+        listener.onCameraViewStarted(mWidth, mHeight);
+        try {
+            long frameInterval = mFrameRate > 0 ? (long) (1000000000L / mFrameRate) : 0;
+            long nextFrameTime = System.nanoTime();
+            do {
+                if (frameInterval > 0) {
+                    long wait = nextFrameTime - System.nanoTime();
+                    if (wait > 0)
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    nextFrameTime += frameInterval;
+                }
+
+                long start = System.nanoTime();
+                listener.onCameraFrame(this);
+                mListenerNanos += System.nanoTime() - start;
+                mDeliveredFrames++;
+            } while ((maxFrames == 0 || mDeliveredFrames < maxFrames) && grab());
+        } finally {
+            listener.onCameraViewStopped();
+        }
+        return mDeliveredFrames;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getDeliveredFrames() {
+        return mDeliveredFrames;
+    }
+
+    /**
+     * @return the average time the listener spent in onCameraFrame during the last run()
+     */
+    public double getAverageFrameMillis() {
+        return mDeliveredFrames == 0 ? 0 : mListenerNanos / 1000000.0 / mDeliveredFrames;
+    }
+
+    public void release() {
+        if (mCapture != null)
+            mCapture.release();
+        mBgr.release();
+        mRgba.release();
+        mGray.release();
+    }
+}
@@ -0,0 +1,70 @@
+package org.opencv.android;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Replays recorded frame times through FrameBudgetController.
+ */
+public class FrameBudgetControllerTest {
+
+    private static final long MILLIS = 1000000L;
+
+    /**
+     * @return the index of every frame of the trace that changed the scale
+     */
+    private static List<Integer> replay(FrameBudgetController controller, long[] frameNanos) {
+        List<Integer> changes = new ArrayList<>();
+        for (int i = 0; i < frameNanos.length; i++) {
+            if (controller.onFrameProcessed(frameNanos[i])) {
+                changes.add(i);
+            }
+        }
+        return changes;
+    }
+
+    private static long[] trace(int frames, long millis) {
+        long[] trace = new long[frames];
+        for (int i = 0; i < frames; i++) {
+            trace[i] = millis * MILLIS;
+        }
+        return trace;
+    }
+
+    @Test
+    public void stepsDownWhenSlowAndBackUpWithHeadroom() {
+        FrameBudgetController controller = new FrameBudgetController(33);
+
+        // 15 cooldown frames, then 5 frames over budget
+        List<Integer> changes = replay(controller, trace(20, 50));
+        assertEquals(1, changes.size());
+        assertEquals(19, (int) changes.get(0));
+        assertEquals(0.75, controller.getScale(), 0);
+
+        // 15 cooldown frames, then 30 frames below 60% of the budget
+        changes = replay(controller, trace(60, 10));
+        assertEquals(1, changes.size());
+        assertEquals(44, (int) changes.get(0));
+        assertEquals(1.0, controller.getScale(), 0);
+    }
+
+    @Test
+    public void holdsScaleBetweenThresholds() {
+        FrameBudgetController controller = new FrameBudgetController(33);
+
+        assertEquals(0, replay(controller, trace(200, 25)).size());
+        assertEquals(1.0, controller.getScale(), 0);
+    }
+
+    @Test
+    public void neverStepsBelowSmallestScale() {
+        FrameBudgetController controller = new FrameBudgetController(33);
+
+        assertEquals(4, replay(controller, trace(500, 200)).size());
+        assertEquals(0.25, controller.getScale(), 0);
+    }
+}
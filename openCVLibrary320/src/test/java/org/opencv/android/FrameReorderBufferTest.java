@@ -0,0 +1,64 @@
+package org.opencv.android;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Replays recorded completion orders of a worker pool through FrameReorderBuffer.
+ */
+public class FrameReorderBufferTest {
+
+    private final List<Integer> mDelivered = new ArrayList<>();
+    private final List<Integer> mDropped = new ArrayList<>();
+    private final FrameReorderBuffer.Sink<Integer> mSink = new FrameReorderBuffer.Sink<Integer>() {
+        @Override
+        public void deliver(Integer frame) {
+            mDelivered.add(frame);
+        }
+
+        @Override
+        public void drop(Integer frame) {
+            mDropped.add(frame);
+        }
+    };
+
+    private void replay(FrameReorderBuffer<Integer> buffer, int... completionOrder) {
+        for (int sequence : completionOrder) {
+            buffer.complete(sequence, sequence);
+        }
+    }
+
+    @Test
+    public void deliversInCaptureOrder() {
+        // Three workers finishing frames out of order
+        replay(new FrameReorderBuffer<>(3, mSink), 1, 0, 2, 5, 4, 3, 6, 8, 7);
+
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8), mDelivered);
+        assertEquals(0, mDropped.size());
+    }
+
+    @Test
+    public void skipsAheadOfSlowFrameAndDropsIt() {
+        // Frame 0 is still being processed when 1, 2 and 3 finish
+        replay(new FrameReorderBuffer<>(2, mSink), 1, 2, 3, 0, 4);
+
+        assertEquals(Arrays.asList(1, 2, 3, 4), mDelivered);
+        assertEquals(Arrays.asList(0), mDropped);
+    }
+
+    @Test
+    public void clearDropsPendingAndRestarts() {
+        FrameReorderBuffer<Integer> buffer = new FrameReorderBuffer<>(3, mSink);
+        replay(buffer, 1, 2);
+        buffer.clear();
+        replay(buffer, 0, 1);
+
+        assertEquals(Arrays.asList(0, 1), mDelivered);
+        assertEquals(Arrays.asList(1, 2), mDropped);
+    }
+}
@@ -0,0 +1,128 @@
+package org.opencv.android;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.android.CameraBridgeViewBase.CvCameraViewFrame;
+import org.opencv.android.CameraBridgeViewBase.CvCameraViewListener2;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Replays a recorded sequence of frames to a listener that processes them on a pool, the way
+ * JavaCameraView does with several processing threads, and checks they come out in order.
+ * Needs the OpenCV native library on java.library.path and is skipped without it.
+ */
+public class ReplayFrameSourceTest {
+
+    private static final int FRAMES = 12;
+
+    private File mDirectory;
+
+    @Before
+    public void recordFrames() throws IOException {
+        try {
+            System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        } catch (UnsatisfiedLinkError e) {
+            Assume.assumeTrue("OpenCV native library not available", false);
+        }
+        mDirectory = File.createTempFile("replay", "");
+        if (!mDirectory.delete() || !mDirectory.mkdir()) {
+            throw new IOException("Couldn't create " + mDirectory);
+        }
+        // Every frame is a flat gray level that identifies it
+        for (int i = 0; i < FRAMES; i++) {
+            Mat frame = new Mat(48, 64, CvType.CV_8UC3, new Scalar(i * 10, i * 10, i * 10));
+            Imgcodecs.imwrite(new File(mDirectory, String.format("frame%02d.png", i)).getPath(), frame);
+            frame.release();
+        }
+    }
+
+    @After
+    public void deleteFrames() {
+        if (mDirectory == null) {
+            return;
+        }
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void framesProcessedOnPoolAreDeliveredInOrder() throws InterruptedException {
+        final List<Integer> delivered = new ArrayList<>();
+        final FrameReorderBuffer<Integer> buffer = new FrameReorderBuffer<>(FRAMES, new FrameReorderBuffer.Sink<Integer>() {
+            @Override
+            public void deliver(Integer frame) {
+                delivered.add(frame);
+            }
+
+            @Override
+            public void drop(Integer frame) {
+            }
+        });
+        final ExecutorService pool = Executors.newFixedThreadPool(3);
+
+        ReplayFrameSource source = ReplayFrameSource.fromImageDirectory(mDirectory);
+        int frames = source.run(new CvCameraViewListener2() {
+            private long mSequence = 0;
+
+            @Override
+            public void onCameraViewStarted(int width, int height) {
+                assertEquals(64, width);
+                assertEquals(48, height);
+            }
+
+            @Override
+            public void onCameraViewStopped() {
+            }
+
+            @Override
+            public Mat onCameraFrame(CvCameraViewFrame frame) {
+                final long sequence = mSequence++;
+                final int level = (int) frame.gray().get(0, 0)[0];
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            // Earlier frames of each group take longest, so they finish out of order
+                            Thread.sleep((2 - sequence % 3) * 20);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        buffer.complete(sequence, level);
+                    }
+                });
+                return frame.rgba();
+            }
+        }, 0);
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+        source.release();
+
+        assertEquals(FRAMES, frames);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < FRAMES; i++) {
+            expected.add(i * 10);
+        }
+        assertEquals(expected, delivered);
+    }
+}